@@ -0,0 +1,102 @@
+import java.util.regex.Pattern;
+
+/**
+ * Runs a benchmark with warmup and measurement iterations and prints its average time per operation.
+ * The iterations are configured with system properties:
+ * bench.warmup and bench.iterations set the number of iterations, bench.time the length of each in milliseconds,
+ * and bench.filter a regular expression selecting the benchmarks to run by name.
+ */
+class BenchmarkHarness {
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 5);
+    private static final int MEASUREMENT_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.time", 200) * 1_000_000L;
+    private static final Pattern FILTER = Pattern.compile(System.getProperty("bench.filter", ".*"));
+
+    /**
+     * Collects the results of the measured code, so the JIT compiler can't remove it as dead code.
+     */
+    static volatile long sink;
+
+    /**
+     * The code measured by a benchmark.
+     */
+    interface Operation {
+        /**
+         * Runs the measured code once.
+         *
+         * @return a value derived from the work done, consumed by the harness
+         */
+        long run();
+    }
+
+    /**
+     * Checks if a benchmark is selected by the bench.filter property.
+     *
+     * @param name the name of the benchmark
+     * @return true if the benchmark should run, false otherwise
+     */
+    static boolean isSelected(String name) {
+        return FILTER.matcher(name).matches();
+    }
+
+    /**
+     * Measures a benchmark if it is selected and prints its time per operation.
+     *
+     * @param name       the name of the benchmark
+     * @param operations the number of operations done by one run of the measured code
+     * @param operation  the measured code
+     */
+    static void measure(String name, int operations, Operation operation) {
+        if (!isSelected(name))
+            return;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(operation);
+        }
+        double[] results = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            results[i] = runIteration(operation) / operations;
+        }
+        report(name, results, "ns/op");
+    }
+
+    /**
+     * Prints the mean and standard deviation of the results of a benchmark.
+     *
+     * @param name    the name of the benchmark
+     * @param results the result of every measurement iteration
+     * @param unit    the unit of the results
+     */
+    static void report(String name, double[] results, String unit) {
+        double mean = 0;
+        for (double result : results) {
+            mean += result;
+        }
+        mean /= results.length;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        double deviation = results.length > 1 ? Math.sqrt(variance / (results.length - 1)) : 0;
+        System.out.println(String.format("%-64s %14.2f %s  +- %.2f", name, mean, unit, deviation));
+    }
+
+    /**
+     * Runs the measured code repeatedly for the length of an iteration.
+     *
+     * @param operation the measured code
+     * @return the average time of one run in nanoseconds
+     */
+    private static double runIteration(Operation operation) {
+        long runs = 0;
+        long result = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            result += operation.run();
+            ++runs;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink += result;
+        return (double) elapsed / runs;
+    }
+}
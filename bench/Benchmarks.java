@@ -0,0 +1,37 @@
+import java.util.Random;
+
+/**
+ * Runs all benchmarks. Every benchmark builds its data from fixed seeds, so runs are comparable.
+ * See {@link BenchmarkHarness} for the system properties controlling the runs.
+ */
+public class Benchmarks {
+    /**
+     * The seed of every random generator used to build benchmark data.
+     */
+    static final long SEED = 42;
+
+    public static void main(String[] args) throws InterruptedException {
+        StackBenchmarks.run();
+        PlaylistBenchmarks.run();
+        ConcurrentStackBenchmarks.run();
+        ConcurrentPlaylistBenchmarks.run();
+    }
+
+    /**
+     * Creates a catalog of distinct songs with random artists, genres and durations.
+     *
+     * @param size the number of songs
+     * @return the songs of the catalog
+     */
+    static Song[] catalog(int size) {
+        Random random = new Random(SEED);
+        Song.Genre[] genres = Song.Genre.values();
+        int artists = Math.max(1, size / 50);
+        Song[] songs = new Song[size];
+        for (int i = 0; i < size; i++) {
+            songs[i] = new Song("Song " + i, "Artist " + random.nextInt(artists),
+                    genres[random.nextInt(genres.length)], 90 + random.nextInt(390));
+        }
+        return songs;
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput benchmarks of {@link ConcurrentPlaylist} against a {@link Playlist} guarded by synchronized,
+ * with reader threads iterating over the playlist while one writer removes and adds back a song at a fixed
+ * rate. The readers of the synchronized playlist hold its lock for a whole iteration, as they must.
+ */
+class ConcurrentPlaylistBenchmarks {
+    private static final int SIZE = 10_000;
+    private static final long WRITE_INTERVAL_NANOS = 100_000;
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.time", 200);
+
+    /**
+     * Runs the concurrent playlist benchmarks for an increasing number of reader threads.
+     *
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    static void run() throws InterruptedException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Song[] songs = Benchmarks.catalog(SIZE);
+        for (int readers = 1; readers <= processors; readers *= 2) {
+            runCopyOnWrite(readers, songs);
+            runSynchronized(readers, songs);
+        }
+    }
+
+    /**
+     * Measures full iterations over a concurrent playlist.
+     *
+     * @param readers the number of reader threads
+     * @param songs   the songs of the playlist
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void runCopyOnWrite(int readers, Song[] songs) throws InterruptedException {
+        String name = "ConcurrentPlaylist.iterator[readers=" + readers + "]";
+        if (!BenchmarkHarness.isSelected(name))
+            return;
+        ConcurrentPlaylist playlist = new ConcurrentPlaylist();
+        playlist.addAll(Arrays.asList(songs));
+        Song changed = songs[0];
+        BenchmarkHarness.report(name, measure(readers, () -> {
+            long result = 0;
+            for (Song song : playlist) {
+                result += song.getDuration();
+            }
+            return result;
+        }, () -> {
+            playlist.removeSong(changed);
+            playlist.addSong(changed);
+        }), "iterations/ms");
+    }
+
+    /**
+     * Measures full iterations over a playlist guarded by synchronized.
+     *
+     * @param readers the number of reader threads
+     * @param songs   the songs of the playlist
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void runSynchronized(int readers, Song[] songs) throws InterruptedException {
+        String name = "synchronized Playlist.iterator[readers=" + readers + "]";
+        if (!BenchmarkHarness.isSelected(name))
+            return;
+        Playlist playlist = new Playlist();
+        playlist.addAll(Arrays.asList(songs));
+        Song changed = songs[0];
+        BenchmarkHarness.report(name, measure(readers, () -> {
+            long result = 0;
+            synchronized (playlist) {
+                for (Song song : playlist) {
+                    result += song.getDuration();
+                }
+            }
+            return result;
+        }, () -> {
+            synchronized (playlist) {
+                playlist.removeSong(changed);
+                playlist.addSong(changed);
+            }
+        }), "iterations/ms");
+    }
+
+    /**
+     * Runs the readers and the writer, once for warmup and then for each iteration.
+     *
+     * @param readers the number of reader threads
+     * @param read    a full iteration over the playlist
+     * @param write   the change made by the writer
+     * @return the number of reads per millisecond of each iteration
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static double[] measure(int readers, BenchmarkHarness.Operation read, Runnable write)
+            throws InterruptedException {
+        runIteration(readers, read, write);
+        double[] results = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            results[i] = (double) runIteration(readers, read, write) / ITERATION_MILLIS;
+        }
+        return results;
+    }
+
+    /**
+     * Runs the readers in a loop and the writer at a fixed rate for the length of an iteration.
+     *
+     * @param readers the number of reader threads
+     * @param read    a full iteration over the playlist
+     * @param write   the change made by the writer
+     * @return the number of reads done by all readers
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static long runIteration(int readers, BenchmarkHarness.Operation read, Runnable write)
+            throws InterruptedException {
+        LongAdder reads = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[readers + 1];
+        for (int i = 0; i < readers; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                long result = 0;
+                while (running.get()) {
+                    result += read.run();
+                    ++done;
+                }
+                reads.add(done);
+                BenchmarkHarness.sink = result;
+            });
+        }
+        workers[readers] = new Thread(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long next = System.nanoTime();
+            while (running.get()) {
+                write.run();
+                next += WRITE_INTERVAL_NANOS;
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+        });
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        start.countDown();
+        Thread.sleep(ITERATION_MILLIS);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return reads.sum();
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput benchmarks of {@link LockFreeStack} against an {@link ArrayStack} guarded by synchronized,
+ * with every thread pushing and popping in a loop, followed by stress runs verifying the lock-free stack.
+ */
+class ConcurrentStackBenchmarks {
+    private static final int PREFILLED = 1_000;
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_PUSHES = Integer.getInteger("bench.stress", 200_000);
+    private static final int STRESS_CAPACITY = 5;
+    private static final int STRESS_BURST = 8;
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.time", 200);
+
+    /**
+     * Runs the concurrent benchmarks for an increasing number of threads.
+     *
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    static void run() throws InterruptedException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Song[] songs = Benchmarks.catalog(PREFILLED);
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            runLockFree(threads, songs);
+            runSynchronized(threads, songs);
+        }
+        runStress(Integer.MAX_VALUE);
+        runStress(STRESS_CAPACITY);
+    }
+
+    /**
+     * Runs threads pushing distinct tokens onto a lock-free stack and polling it in bursts, then verifies
+     * that every pushed token was popped exactly once and that the size never exceeded the capacity.
+     * Contention makes pushes and pops meet in the elimination array, and bursts longer than a small
+     * capacity make pushes fail the depth check; the run reports how often both happened.
+     *
+     * @param capacity the capacity of the stack
+     * @throws InterruptedException  if interrupted while waiting for the threads
+     * @throws IllegalStateException if the stack lost, duplicated or overfilled its elements
+     */
+    private static void runStress(int capacity) throws InterruptedException {
+        String name = "LockFreeStack.stress[threads=" + STRESS_THREADS + ",capacity="
+                + (capacity == Integer.MAX_VALUE ? "unbounded" : String.valueOf(capacity)) + "]";
+        if (!BenchmarkHarness.isSelected(name))
+            return;
+        LockFreeStack<Token> stack = new LockFreeStack<>(capacity);
+        AtomicIntegerArray popCounts = new AtomicIntegerArray(STRESS_THREADS * STRESS_PUSHES);
+        LongAdder rejected = new LongAdder();
+        AtomicBoolean overfilled = new AtomicBoolean();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[STRESS_THREADS];
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            int first = i * STRESS_PUSHES;
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int pushed = 0;
+                while (pushed < STRESS_PUSHES) {
+                    for (int burst = 0; burst < STRESS_BURST && pushed < STRESS_PUSHES; burst++) {
+                        if (stack.offer(new Token(first + pushed)))
+                            ++pushed;
+                        else
+                            rejected.increment();
+                        if (stack.size() > capacity)
+                            overfilled.set(true);
+                    }
+                    for (int burst = 0; burst < STRESS_BURST; burst++) {
+                        Token token = stack.poll();
+                        if (token != null)
+                            popCounts.incrementAndGet(token.id);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long millis = (System.nanoTime() - begin) / 1_000_000;
+        for (Token token = stack.poll(); token != null; token = stack.poll()) {
+            popCounts.incrementAndGet(token.id);
+        }
+        if (overfilled.get())
+            throw new IllegalStateException(name + ": size exceeded the capacity");
+        for (int id = 0; id < popCounts.length(); id++) {
+            if (popCounts.get(id) != 1)
+                throw new IllegalStateException(name + ": token " + id + " popped " + popCounts.get(id) + " times");
+        }
+        System.out.println(String.format("%-64s %14s  %d pushes in %d ms, %d eliminated, %d rejected when full",
+                name, "ok", popCounts.length(), millis, stack.eliminations(), rejected.sum()));
+    }
+
+    /**
+     * Measures push and pop pairs on a lock-free stack.
+     *
+     * @param threads the number of threads
+     * @param songs   the elements the stack starts with
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void runLockFree(int threads, Song[] songs) throws InterruptedException {
+        String name = "LockFreeStack.pushPop[threads=" + threads + "]";
+        if (!BenchmarkHarness.isSelected(name))
+            return;
+        LockFreeStack<Song> stack = new LockFreeStack<>(Integer.MAX_VALUE);
+        for (Song song : songs) {
+            stack.push(song);
+        }
+        BenchmarkHarness.report(name, measure(threads, () -> stack.push(stack.pop())), "ops/ms");
+    }
+
+    /**
+     * Measures push and pop pairs on a growing array stack guarded by synchronized.
+     *
+     * @param threads the number of threads
+     * @param songs   the elements the stack starts with
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void runSynchronized(int threads, Song[] songs) throws InterruptedException {
+        String name = "synchronized ArrayStack.pushPop[threads=" + threads + "]";
+        if (!BenchmarkHarness.isSelected(name))
+            return;
+        ArrayStack<Song> stack = new ArrayStack<>(0, ArrayStack.GrowthPolicy.GROW);
+        for (Song song : songs) {
+            stack.push(song);
+        }
+        BenchmarkHarness.report(name, measure(threads, () -> {
+            Song song;
+            synchronized (stack) {
+                song = stack.pop();
+            }
+            synchronized (stack) {
+                stack.push(song);
+            }
+        }), "ops/ms");
+    }
+
+    /**
+     * Runs a pop and push pair in a loop on every thread, once for warmup and then for each iteration.
+     *
+     * @param threads the number of threads
+     * @param pair    the pop and push pair
+     * @return the number of operations per millisecond of each iteration
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static double[] measure(int threads, Runnable pair) throws InterruptedException {
+        runIteration(threads, pair);
+        double[] results = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            results[i] = (double) runIteration(threads, pair) / ITERATION_MILLIS;
+        }
+        return results;
+    }
+
+    /**
+     * Runs a pop and push pair in a loop on every thread for the length of an iteration.
+     *
+     * @param threads the number of threads
+     * @param pair    the pop and push pair
+     * @return the number of operations done by all threads
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static long runIteration(int threads, Runnable pair) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                while (running.get()) {
+                    pair.run();
+                    done += 2;
+                }
+                operations.add(done);
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        Thread.sleep(ITERATION_MILLIS);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum();
+    }
+
+    /**
+     * A distinct element of a stress run, identified by the number of the push that created it.
+     */
+    private static final class Token implements Cloneable {
+        private final int id;
+
+        /**
+         * Constructs a token.
+         *
+         * @param id the id of the token
+         */
+        Token(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of adding, removing, comparing, rendering, saving, loading and iterating over a {@link Playlist}.
+ * Iteration is measured for every scanning order with every kind of filter.
+ */
+class PlaylistBenchmarks {
+    private static final int[] SIZES = {1_000, 100_000};
+    private static final int MAX_DURATION = 180;
+
+    /**
+     * Runs the playlist benchmarks for every size.
+     */
+    static void run() {
+        for (int size : SIZES) {
+            Song[] songs = Benchmarks.catalog(size);
+            runUpdates(size, songs);
+            runComparisons(size, songs);
+            runRendering(size, songs);
+            runPersistence(size, songs);
+            runIterations(size, songs);
+            runQueries(size, songs);
+            runShuffle(size, songs);
+            runAggregates(size, songs);
+        }
+    }
+
+    /**
+     * Benchmarks adding songs to an empty playlist and removing and adding back every song.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runUpdates(int size, Song[] songs) {
+        BenchmarkHarness.measure("Playlist.addSong[" + size + "]", size, () -> {
+            Playlist playlist = new Playlist();
+            for (Song song : songs) {
+                playlist.addSong(song);
+            }
+            return playlist.size();
+        });
+        List<Song> catalog = Arrays.asList(songs);
+        BenchmarkHarness.measure("Playlist.addAll[" + size + "]", size, () -> new Playlist().addAll(catalog).size());
+        Playlist playlist = filledPlaylist(songs);
+        BenchmarkHarness.measure("Playlist.removeSong+addSong[" + size + "]", 2 * size, () -> {
+            for (Song song : songs) {
+                playlist.removeSong(song);
+            }
+            for (Song song : songs) {
+                playlist.addSong(song);
+            }
+            return playlist.size();
+        });
+        BenchmarkHarness.measure("Playlist.removeAll+addAll[" + size + "]", 2 * size, () -> {
+            playlist.removeAll(catalog);
+            return playlist.addAll(catalog).size();
+        });
+    }
+
+    /**
+     * Benchmarks equals and hashCode of two playlists built separately from the same songs.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlists
+     */
+    private static void runComparisons(int size, Song[] songs) {
+        Playlist first = filledPlaylist(songs);
+        Playlist second = filledPlaylist(songs);
+        BenchmarkHarness.measure("Playlist.equals[" + size + "]", 1, () -> first.equals(second) ? 1 : 0);
+        BenchmarkHarness.measure("Playlist.hashCode[" + size + "]", 1, first::hashCode);
+    }
+
+    /**
+     * Benchmarks rendering the playlist with toString and streaming it to a writer that drops its output.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runRendering(int size, Song[] songs) {
+        Playlist playlist = filledPlaylist(songs);
+        BenchmarkHarness.measure("Playlist.toString[" + size + "]", size, () -> playlist.toString().length());
+        BenchmarkHarness.measure("Playlist.writeTo[" + size + "]", size, () -> {
+            CountingWriter writer = new CountingWriter();
+            try {
+                playlist.writeTo(writer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return writer.count;
+        });
+    }
+
+    /**
+     * Benchmarks saving the playlist to a file, opening the file, and loading it back into a playlist.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runPersistence(int size, Song[] songs) {
+        Playlist playlist = filledPlaylist(songs);
+        try {
+            Path file = Files.createTempFile("playlist", ".bin");
+            try {
+                BenchmarkHarness.measure("Playlist.saveTo[" + size + "]", size, () -> {
+                    saveTo(playlist, file);
+                    return playlist.size();
+                });
+                saveTo(playlist, file);
+                BenchmarkHarness.measure("PlaylistFile.open[" + size + "]", 1, () -> open(file).size());
+                BenchmarkHarness.measure("PlaylistFile.toPlaylist[" + size + "]", size,
+                        () -> open(file).toPlaylist().size());
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Saves a playlist, rethrowing a failure as unchecked.
+     *
+     * @param playlist the playlist to save
+     * @param file     the file to write
+     */
+    private static void saveTo(Playlist playlist, Path file) {
+        try {
+            playlist.saveTo(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens a saved playlist, rethrowing a failure as unchecked.
+     *
+     * @param file the file to open
+     * @return the saved playlist
+     */
+    private static PlaylistFile open(Path file) {
+        try {
+            return PlaylistFile.open(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Benchmarks a full iteration for every scanning order and filter.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runIterations(int size, Song[] songs) {
+        Playlist playlist = filledPlaylist(songs);
+        String artist = songs[0].getArtist();
+        Song.Genre genre = songs[0].getGenre();
+        SongFilter expression = SongFilter.genres(genre, Song.Genre.JAZZ)
+                .and(SongFilter.durationBetween(MAX_DURATION / 2, MAX_DURATION))
+                .and(SongFilter.artist(artist).negate());
+        String[] filters = {"none", "artist", "genre", "duration", "all", "expression"};
+        for (ScanningOrder order : ScanningOrder.values()) {
+            for (String filter : filters) {
+                boolean all = filter.equals("all");
+                playlist.setScanningOrder(order);
+                playlist.filterArtist(all || filter.equals("artist") ? artist : null);
+                playlist.filterGenre(all || filter.equals("genre") ? genre : null);
+                playlist.filterDuration(all || filter.equals("duration") ? MAX_DURATION : Integer.MAX_VALUE);
+                playlist.filter(filter.equals("expression") ? expression : SongFilter.all());
+                BenchmarkHarness.measure("Playlist.iterator[" + order + ", " + filter + ", " + size + "]", 1, () -> {
+                    long result = 0;
+                    for (Song song : playlist) {
+                        result += song.getDuration();
+                    }
+                    return result;
+                });
+            }
+        }
+    }
+
+    /**
+     * Benchmarks iterating again over the same query, sorted by name and filtered by artist, which reuses the
+     * candidates the query sorted, against creating a new query for every iteration, and a first page.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runQueries(int size, Song[] songs) {
+        Playlist playlist = filledPlaylist(songs);
+        String artist = songs[0].getArtist();
+        PlaylistQuery query = playlist.query().artist(artist).order(ScanningOrder.NAME);
+        BenchmarkHarness.measure("PlaylistQuery.iterator[reused, " + size + "]", 1, () -> {
+            long result = 0;
+            for (Song song : query) {
+                result += song.getDuration();
+            }
+            return result;
+        });
+        BenchmarkHarness.measure("PlaylistQuery.iterator[new, " + size + "]", 1, () -> {
+            long result = 0;
+            for (Song song : playlist.query().artist(artist).order(ScanningOrder.NAME)) {
+                result += song.getDuration();
+            }
+            return result;
+        });
+        BenchmarkHarness.measure("PlaylistQuery.page[new, " + size + "]", 1, () -> {
+            long result = 0;
+            for (Song song : playlist.query().artist(artist).order(ScanningOrder.NAME).page(0, 10)) {
+                result += song.getDuration();
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Benchmarks starting a shuffled playback, taking the first song of a lazy shuffle against copying the
+     * songs and shuffling the copy, and shuffling the whole playlist with its artists spread.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runShuffle(int size, Song[] songs) {
+        Playlist playlist = filledPlaylist(songs);
+        long[] seed = {Benchmarks.SEED};
+        BenchmarkHarness.measure("Playlist.shuffled[first, " + size + "]", 1,
+                () -> playlist.shuffled(seed[0]++, false).next().getDuration());
+        Random random = new Random(Benchmarks.SEED);
+        BenchmarkHarness.measure("Collections.shuffle[first, " + size + "]", 1, () -> {
+            ArrayList<Song> copy = new ArrayList<>(size);
+            playlist.forEach(copy::add);
+            Collections.shuffle(copy, random);
+            return copy.get(0).getDuration();
+        });
+        BenchmarkHarness.measure("Playlist.shuffled[spread, " + size + "]", size, () -> {
+            long result = 0;
+            Iterator<Song> shuffled = playlist.shuffled(seed[0]++, true);
+            while (shuffled.hasNext()) {
+                result += shuffled.next().getDuration();
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Benchmarks duration queries answered from the running totals and duration trees of a playlist, against
+     * summing the songs while iterating.
+     *
+     * @param size  the number of songs
+     * @param songs the songs of the playlist
+     */
+    private static void runAggregates(int size, Song[] songs) {
+        Playlist playlist = filledPlaylist(songs);
+        PlaylistQuery rock = playlist.query().genre(Song.Genre.ROCK);
+        BenchmarkHarness.measure("PlaylistQuery.totalDuration[genre, " + size + "]", 1, rock::totalDuration);
+        BenchmarkHarness.measure("PlaylistQuery.iterate[genre total, " + size + "]", 1, () -> {
+            long result = 0;
+            for (Song song : rock) {
+                result += song.getDuration();
+            }
+            return result;
+        });
+        PlaylistQuery shortest = playlist.query().order(ScanningOrder.DURATION);
+        BenchmarkHarness.measure("PlaylistQuery.countFitting[DURATION, " + size + "]", 1,
+                () -> shortest.countFitting(3600));
+        BenchmarkHarness.measure("PlaylistQuery.countFitting[ADDING, " + size + "]", 1,
+                () -> playlist.query().countFitting(3600));
+    }
+
+    /**
+     * Creates a playlist holding all given songs.
+     *
+     * @param songs the songs to add
+     * @return the playlist
+     */
+    private static Playlist filledPlaylist(Song[] songs) {
+        Playlist playlist = new Playlist();
+        for (Song song : songs) {
+            playlist.addSong(song);
+        }
+        return playlist;
+    }
+
+    /**
+     * A writer that only counts the characters written to it.
+     */
+    private static class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks of the push, pop, bulk, peek, iteration and clone paths of {@link ArrayStack}, of
+ * {@link IntStack} holding song durations, and of {@link OffHeapStack} holding fixed-width song records.
+ */
+class StackBenchmarks {
+    private static final int[] SIZES = {100, 10_000, 1_000_000};
+
+    /**
+     * Runs the stack benchmarks for every size.
+     */
+    static void run() {
+        for (int size : SIZES) {
+            Song[] songs = Benchmarks.catalog(size);
+            runPushPop(size, songs);
+            runBulk(size, songs);
+            runReads(size, songs);
+            runClone(size, songs);
+            runPrimitive(size, songs);
+            runOffHeap(size, songs);
+        }
+    }
+
+    /**
+     * Benchmarks filling and emptying a fixed and a growing stack.
+     *
+     * @param size  the number of elements
+     * @param songs the elements to push
+     */
+    private static void runPushPop(int size, Song[] songs) {
+        ArrayStack<Song> fixed = new ArrayStack<>(size);
+        BenchmarkHarness.measure("ArrayStack.pushPop[fixed, " + size + "]", 2 * size, () -> {
+            for (Song song : songs) {
+                fixed.push(song);
+            }
+            long result = 0;
+            while (!fixed.isEmpty()) {
+                result += fixed.pop().getDuration();
+            }
+            return result;
+        });
+        BenchmarkHarness.measure("ArrayStack.push[grow, " + size + "]", size, () -> {
+            ArrayStack<Song> growing = new ArrayStack<>(0, ArrayStack.GrowthPolicy.GROW);
+            for (Song song : songs) {
+                growing.push(song);
+            }
+            return growing.size();
+        });
+    }
+
+    /**
+     * Benchmarks filling a fixed stack with pushAll and emptying it with popN and drainTo.
+     *
+     * @param size  the number of elements
+     * @param songs the elements to push
+     */
+    private static void runBulk(int size, Song[] songs) {
+        List<Song> elements = Arrays.asList(songs);
+        ArrayStack<Song> stack = new ArrayStack<>(size);
+        BenchmarkHarness.measure("ArrayStack.pushAll+popN[" + size + "]", 2 * size, () -> {
+            stack.pushAll(elements);
+            return stack.popN(size).size();
+        });
+        ArrayList<Song> target = new ArrayList<>(size);
+        BenchmarkHarness.measure("ArrayStack.pushAll+drainTo[" + size + "]", 2 * size, () -> {
+            target.clear();
+            stack.pushAll(elements);
+            return stack.drainTo(target);
+        });
+    }
+
+    /**
+     * Benchmarks peeking at and iterating over a full stack.
+     *
+     * @param size  the number of elements
+     * @param songs the elements of the stack
+     */
+    private static void runReads(int size, Song[] songs) {
+        ArrayStack<Song> stack = filledStack(size, songs);
+        BenchmarkHarness.measure("ArrayStack.peek[" + size + "]", size, () -> {
+            long result = 0;
+            for (int i = 0; i < size; i++) {
+                result += stack.peek().getDuration();
+            }
+            return result;
+        });
+        BenchmarkHarness.measure("ArrayStack.iterate[" + size + "]", size, () -> {
+            long result = 0;
+            for (Song song : stack) {
+                result += song.getDuration();
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Benchmarks deep clones and clones sharing the elements.
+     *
+     * @param size  the number of elements
+     * @param songs the elements of the stack
+     */
+    private static void runClone(int size, Song[] songs) {
+        ArrayStack<Song> deep = filledStack(size, songs);
+        BenchmarkHarness.measure("ArrayStack.clone[deep, " + size + "]", 1, () -> deep.clone().size());
+        ArrayStack<Song> shared = filledStack(size, songs);
+        shared.setElementCopier(ArrayStack.sharedElements());
+        BenchmarkHarness.measure("ArrayStack.clone[shared, " + size + "]", 1, () -> shared.clone().size());
+    }
+
+    /**
+     * Benchmarks filling and emptying a stack of song durations, unboxed in an {@link IntStack} and boxed in
+     * an {@link ArrayStack}.
+     *
+     * @param size  the number of elements
+     * @param songs the songs the durations are taken from
+     */
+    private static void runPrimitive(int size, Song[] songs) {
+        int[] durations = new int[size];
+        for (int i = 0; i < size; i++) {
+            durations[i] = songs[i].getDuration();
+        }
+        IntStack stack = new IntStack(size);
+        BenchmarkHarness.measure("IntStack.pushPop[" + size + "]", 2 * size, () -> {
+            for (int duration : durations) {
+                stack.push(duration);
+            }
+            long result = 0;
+            while (!stack.isEmpty()) {
+                result += stack.pop();
+            }
+            return result;
+        });
+        ArrayStack<Duration> boxed = new ArrayStack<>(size);
+        BenchmarkHarness.measure("ArrayStack.pushPop[boxed, " + size + "]", 2 * size, () -> {
+            for (int duration : durations) {
+                boxed.push(new Duration(duration));
+            }
+            long result = 0;
+            while (!boxed.isEmpty()) {
+                result += boxed.pop().seconds;
+            }
+            return result;
+        });
+    }
+
+    /**
+     * A boxed song duration, since a stack of {@link Integer} isn't allowed.
+     */
+    private static final class Duration implements Cloneable {
+        final int seconds;
+
+        Duration(int seconds) {
+            this.seconds = seconds;
+        }
+    }
+
+    /**
+     * Benchmarks filling an off-heap stack with song records and summing their durations, either by popping
+     * the records or by reading them in place before dropping them.
+     *
+     * @param size  the number of elements
+     * @param songs the songs the records are taken from
+     */
+    private static void runOffHeap(int size, Song[] songs) {
+        SongRecord[] records = new SongRecord[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new SongRecord(i, songs[i].getDuration(), songs[i].getGenre().ordinal());
+        }
+        OffHeapStack<SongRecord> stack = new OffHeapStack<>(SongRecord.CODEC, size);
+        BenchmarkHarness.measure("OffHeapStack.pushPop[" + size + "]", 2 * size, () -> {
+            for (SongRecord record : records) {
+                stack.push(record);
+            }
+            long result = 0;
+            while (!stack.isEmpty()) {
+                result += stack.pop().duration;
+            }
+            return result;
+        });
+        BenchmarkHarness.measure("OffHeapStack.push+forEachRecord[" + size + "]", 2 * size, () -> {
+            for (SongRecord record : records) {
+                stack.push(record);
+            }
+            long[] result = new long[1];
+            stack.forEachRecord((buffer, offset) -> result[0] += buffer.getInt(offset + 4));
+            stack.clear();
+            return result[0];
+        });
+    }
+
+    /**
+     * A song stored by its id, duration and genre ordinal, in records of 9 bytes.
+     */
+    private static final class SongRecord implements Cloneable {
+        static final RecordCodec<SongRecord> CODEC = new RecordCodec<SongRecord>() {
+            @Override
+            public int recordSize() {
+                return 9;
+            }
+
+            @Override
+            public void encode(SongRecord record, ByteBuffer buffer, int offset) {
+                buffer.putInt(offset, record.id);
+                buffer.putInt(offset + 4, record.duration);
+                buffer.put(offset + 8, (byte) record.genre);
+            }
+
+            @Override
+            public SongRecord decode(ByteBuffer buffer, int offset) {
+                return new SongRecord(buffer.getInt(offset), buffer.getInt(offset + 4), buffer.get(offset + 8));
+            }
+        };
+
+        final int id;
+        final int duration;
+        final int genre;
+
+        SongRecord(int id, int duration, int genre) {
+            this.id = id;
+            this.duration = duration;
+            this.genre = genre;
+        }
+    }
+
+    /**
+     * Creates a fixed stack holding all given elements.
+     *
+     * @param size  the capacity of the stack
+     * @param songs the elements to push
+     * @return the full stack
+     */
+    private static ArrayStack<Song> filledStack(int size, Song[] songs) {
+        ArrayStack<Song> stack = new ArrayStack<>(size);
+        for (Song song : songs) {
+            stack.push(song);
+        }
+        return stack;
+    }
+}
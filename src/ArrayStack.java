@@ -1,13 +1,72 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 /**
  * A generic stack implementation using an array.
+ * The stack either has a fixed capacity or grows its array as needed, see {@link GrowthPolicy}.
  *
  * @param <E> the type of elements in the stack
  */
 public class ArrayStack<E extends Cloneable> implements Stack<E> {
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MIN_GROWN_CAPACITY = 8;
+    private static final UnaryOperator<Object> SHARED_ELEMENTS = element -> element;
+    private static final EmptyStackException PREALLOCATED_EMPTY =
+            new EmptyStackException("Stack is empty", null, false, false);
+    private static final StackOverflowException PREALLOCATED_FULL =
+            new StackOverflowException("Stack is full", null, false, false);
+    /**
+     * The public clone method of each element class, looked up once per class.
+     * Holds null for classes without an accessible clone method.
+     */
+    private static final ClassValue<MethodHandle> CLONE_METHODS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                return MethodHandles.lookup().unreflect(type.getMethod("clone"))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    };
+
     private int maxSize;
     private Object[] stackArray;
     private int top;
+    private GrowthPolicy growthPolicy;
+    private UnaryOperator<E> elementCopier;
+    private boolean arrayShared;
+    private boolean stacklessExceptions;
+    /**
+     * Represents how the array of a stack follows the number of elements in it.
+     */
+    public enum GrowthPolicy {
+        /**
+         * The array is allocated once with the capacity of the stack, pushing to a full stack fails.
+         */
+        FIXED,
+
+        /**
+         * The array grows geometrically when full, so pushing never fails and stays amortized O(1).
+         */
+        GROW,
+
+        /**
+         * The array grows like {@link #GROW} and shrinks to half once at most a quarter of it is used,
+         * but never below the initial capacity.
+         */
+        GROW_AND_SHRINK
+    }
     /**
      * Constructs an empty stack with the specified capacity.
      *
@@ -15,11 +74,23 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
      * @throws NegativeCapacityException if the specified capacity is negative
      */
     public ArrayStack(int capacity) throws NegativeCapacityException {
+        this(capacity, GrowthPolicy.FIXED);
+    }
+    /**
+     * Constructs an empty stack with the specified capacity and growth policy.
+     * For a growing stack the capacity is only the initial size of its array.
+     *
+     * @param capacity     the maximum capacity of a fixed stack, or the initial capacity of a growing one
+     * @param growthPolicy the way the array of the stack follows its size
+     * @throws NegativeCapacityException if the specified capacity is negative
+     */
+    public ArrayStack(int capacity, GrowthPolicy growthPolicy) throws NegativeCapacityException {
         if (capacity < 0)
             throw new NegativeCapacityException("Capacity can't be negative");
         this.maxSize = capacity;
         this.stackArray = new Object[maxSize];
         this.top = -1;
+        this.growthPolicy = growthPolicy;
     }
     /**
      * Adds an element to the top of the stack.
@@ -29,10 +100,30 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
      */
     @Override
     public void push(E element) throws StackOverflowException {
-        if (top == maxSize - 1)
-            throw new StackOverflowException("Stack is full");
+        if (top == stackArray.length - 1)
+            grow(top + 2);
+        else if (arrayShared)
+            unshareArray();
+        ++top;
+        stackArray[top] = element;
+    }
+    /**
+     * Adds an element to the top of the stack unless it is full.
+     *
+     * @param element the element to be added
+     * @return true if the element was added, false if the stack is full
+     */
+    public boolean offer(E element) {
+        if (top == stackArray.length - 1) {
+            if (growthPolicy == GrowthPolicy.FIXED || top + 2 > MAX_ARRAY_SIZE)
+                return false;
+            grow(top + 2);
+        } else if (arrayShared) {
+            unshareArray();
+        }
         ++top;
         stackArray[top] = element;
+        return true;
     }
     /**
      * Removes and returns the element at the top of the stack.
@@ -43,12 +134,139 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
     @Override
     public E pop() throws EmptyStackException {
         if (isEmpty())
-            throw new EmptyStackException("Stack is empty");
+            throw emptyStack();
+        return removeTop();
+    }
+    /**
+     * Removes and returns the element at the top of the stack unless it is empty.
+     * A stack that may hold null elements should be checked with {@link #isEmpty()} instead.
+     *
+     * @return the element at the top of the stack, or null if the stack is empty
+     */
+    public E poll() {
+        if (isEmpty())
+            return null;
+        return removeTop();
+    }
+    /**
+     * Removes the element at the top of a non-empty stack, shrinking the array if the policy allows it.
+     *
+     * @return the removed element
+     */
+    private E removeTop() {
         E element = (E) stackArray[top];
+        if (arrayShared)
+            unshareArray();
         stackArray[top] = null;
         --top;
+        shrink();
         return element;
     }
+    /**
+     * Shrinks the array to half as long as many times as the policy allows it, copying it at most once.
+     */
+    private void shrink() {
+        if (growthPolicy != GrowthPolicy.GROW_AND_SHRINK)
+            return;
+        int length = stackArray.length;
+        while (length > maxSize && top + 1 <= length / 4) {
+            length = Math.max(length / 2, maxSize);
+        }
+        if (length != stackArray.length) {
+            stackArray = Arrays.copyOf(stackArray, length);
+            arrayShared = false;
+        }
+    }
+    /**
+     * Adds the elements of a collection to the top of the stack with a single array copy.
+     * The elements are pushed in the order of the collection, so its last element ends up on top.
+     * Either all elements are added or, if they don't fit, none of them.
+     *
+     * @param elements the elements to be added
+     * @throws StackOverflowException if the elements don't fit in the stack
+     */
+    public void pushAll(Collection<? extends E> elements) throws StackOverflowException {
+        Object[] added = elements.toArray();
+        if (added.length == 0)
+            return;
+        int newSize = top + 1 + added.length;
+        if (newSize < 0 || newSize > stackArray.length)
+            grow(newSize);
+        else if (arrayShared)
+            unshareArray();
+        System.arraycopy(added, 0, stackArray, top + 1, added.length);
+        top = newSize - 1;
+    }
+    /**
+     * Removes and returns the specified number of elements from the top of the stack.
+     * Either all of them are removed or, if the stack holds fewer elements, none of them.
+     *
+     * @param count the number of elements to remove
+     * @return the removed elements, from top to bottom
+     * @throws EmptyStackException if the stack holds fewer than count elements
+     * @throws IllegalArgumentException if count is negative
+     */
+    public List<E> popN(int count) throws EmptyStackException {
+        if (count < 0)
+            throw new IllegalArgumentException("Count can't be negative");
+        if (count > size())
+            throw new EmptyStackException("Stack has fewer than " + count + " elements");
+        List<E> popped = topElements(count);
+        removeTopElements(count);
+        return popped;
+    }
+    /**
+     * Removes all elements of the stack and adds them to a collection, from top to bottom.
+     *
+     * @param target the collection to add the elements to
+     * @return the number of elements moved
+     */
+    public int drainTo(Collection<? super E> target) {
+        return drainTo(target, size());
+    }
+    /**
+     * Removes up to the specified number of elements from the top of the stack and adds them to a collection,
+     * from top to bottom. The elements are only removed once the collection has accepted them.
+     *
+     * @param target      the collection to add the elements to
+     * @param maxElements the maximum number of elements to move
+     * @return the number of elements moved
+     */
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        int count = Math.min(Math.max(maxElements, 0), size());
+        if (count == 0)
+            return 0;
+        target.addAll(topElements(count));
+        removeTopElements(count);
+        return count;
+    }
+    /**
+     * Returns a list of the elements at the top of the stack, from top to bottom, without removing them.
+     *
+     * @param count the number of elements, at most the size of the stack
+     * @return the elements at the top of the stack
+     */
+    private List<E> topElements(int count) {
+        Object[] elements = new Object[count];
+        for (int i = 0; i < count; i++) {
+            elements[i] = stackArray[top - i];
+        }
+        return (List<E>) (List<?>) Arrays.asList(elements);
+    }
+    /**
+     * Removes elements from the top of the stack at once, clearing their slots with a single fill.
+     *
+     * @param count the number of elements to remove, at most the size of the stack
+     */
+    private void removeTopElements(int count) {
+        if (count == 0)
+            return;
+        if (arrayShared)
+            unshareArray();
+        Arrays.fill(stackArray, top + 1 - count, top + 1, null);
+        top -= count;
+        shrink();
+    }
     /**
      * Returns the element at the top of the stack without removing it.
      *
@@ -58,9 +276,42 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
     @Override
     public E peek() throws EmptyStackException {
         if (isEmpty())
-            throw new EmptyStackException("Stack is empty");
+            throw emptyStack();
         return (E) stackArray[top];
     }
+    /**
+     * Returns the element at the top of the stack without removing it, unless it is empty.
+     *
+     * @return the element at the top of the stack, or null if the stack is empty
+     */
+    public E peekOrNull() {
+        return isEmpty() ? null : (E) stackArray[top];
+    }
+    /**
+     * Sets whether an empty or full stack throws a shared, preallocated exception without a stack trace
+     * instead of creating a new one. This makes hitting the bounds cheap in loops that rely on the exceptions.
+     *
+     * @param stackless true to throw preallocated exceptions, false to create a new exception each time
+     */
+    public void setStacklessExceptions(boolean stackless) {
+        this.stacklessExceptions = stackless;
+    }
+    /**
+     * Returns the exception to throw when the stack is empty.
+     *
+     * @return the exception
+     */
+    private EmptyStackException emptyStack() {
+        return stacklessExceptions ? PREALLOCATED_EMPTY : new EmptyStackException("Stack is empty");
+    }
+    /**
+     * Returns the exception to throw when the stack is full.
+     *
+     * @return the exception
+     */
+    private StackOverflowException fullStack() {
+        return stacklessExceptions ? PREALLOCATED_FULL : new StackOverflowException("Stack is full");
+    }
     /**
      * Returns the number of elements in the stack.
      *
@@ -79,33 +330,150 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
     public boolean isEmpty() {
         return top == -1;
     }
+    /**
+     * Returns the number of elements the stack can hold before its array has to grow.
+     *
+     * @return the current capacity of the stack
+     */
+    public int capacity() {
+        return stackArray.length;
+    }
+    /**
+     * Makes sure the stack can hold the specified number of elements without growing again.
+     *
+     * @param minCapacity the number of elements the stack should be able to hold
+     * @throws StackOverflowException if the stack has a fixed capacity smaller than minCapacity
+     */
+    public void ensureCapacity(int minCapacity) throws StackOverflowException {
+        if (minCapacity > stackArray.length)
+            grow(minCapacity);
+    }
+    /**
+     * Shrinks the array of a growing stack to the number of elements in it.
+     * A stack with a fixed capacity keeps its array.
+     */
+    public void trimToSize() {
+        if (growthPolicy != GrowthPolicy.FIXED && stackArray.length > size()) {
+            stackArray = Arrays.copyOf(stackArray, size());
+            arrayShared = false;
+        }
+    }
+    /**
+     * Grows the array so it can hold at least the specified number of elements.
+     * The array grows by half of its length, so repeated pushes cost amortized O(1).
+     *
+     * @param minCapacity the number of elements the array should be able to hold
+     * @throws StackOverflowException if the stack has a fixed capacity or the capacity can't grow further
+     */
+    private void grow(int minCapacity) throws StackOverflowException {
+        if (growthPolicy == GrowthPolicy.FIXED)
+            throw fullStack();
+        if (minCapacity < 0 || minCapacity > MAX_ARRAY_SIZE)
+            throw new StackOverflowException("Stack can't grow any further");
+        int length = stackArray.length;
+        int newCapacity = length + (length >> 1);
+        if (newCapacity < 0 || newCapacity > MAX_ARRAY_SIZE)
+            newCapacity = MAX_ARRAY_SIZE;
+        newCapacity = Math.max(newCapacity, Math.max(minCapacity, MIN_GROWN_CAPACITY));
+        stackArray = Arrays.copyOf(stackArray, newCapacity);
+        arrayShared = false;
+    }
+    /**
+     * Gives this stack its own copy of an array it shares with a clone, before writing to it.
+     */
+    private void unshareArray() {
+        stackArray = stackArray.clone();
+        arrayShared = false;
+    }
+    /**
+     * Sets how {@link #clone()} copies the elements of the stack.
+     * By default every element is copied with its own public clone method.
+     *
+     * @param copier the function returning a copy of an element, or null for the default clone method
+     */
+    public void setElementCopier(UnaryOperator<E> copier) {
+        this.elementCopier = copier;
+    }
+    /**
+     * Returns a copier for {@link #setElementCopier(UnaryOperator)} that shares the elements instead of
+     * copying them. It suits immutable elements and makes {@link #clone()} O(1): the clone shares the
+     * array with this stack, and whichever stack is written to first copies it.
+     *
+     * @param <E> the type of elements in the stack
+     * @return the copier that shares the elements
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> UnaryOperator<E> sharedElements() {
+        return (UnaryOperator<E>) SHARED_ELEMENTS;
+    }
     /**
      * Creates a deep copy of the stack.
+     * Elements are copied with the element copier if one is set, and otherwise with their public clone
+     * method, which is looked up once per element class. With {@link #sharedElements()} the array itself
+     * is shared until one of the stacks changes.
      *
-     * @return a new stack that is a deep copy of this stack
+     * @return a new stack that is a deep copy of this stack, or null if an element can't be cloned
      */
     @Override
     public ArrayStack<E> clone() {
-        ArrayStack<E> newStack = new ArrayStack<>(maxSize);
-        for (int i = 0; i <= top; i++) {
-            try {
-                E element = (E) stackArray[i].getClass().getMethod("clone").invoke(stackArray[i]);
-                newStack.setElement(element, i);
-            } catch (Exception e) {
-                return null;
-            }
-        }
+        ArrayStack<E> newStack = new ArrayStack<>(0, growthPolicy);
+        newStack.maxSize = maxSize;
+        newStack.elementCopier = elementCopier;
+        newStack.stacklessExceptions = stacklessExceptions;
         newStack.top = this.top;
+        if (elementCopier == ArrayStack.<E>sharedElements()) {
+            newStack.stackArray = stackArray;
+            newStack.arrayShared = true;
+            arrayShared = true;
+            return newStack;
+        }
+        newStack.stackArray = new Object[stackArray.length];
+        if (!copyElements(stackArray, newStack.stackArray, size(), elementCopier))
+            return null;
         return newStack;
     }
     /**
-     * Sets the specified element at the given index in the stack array.
+     * Copies the first elements of an array into another array.
      *
-     * @param element the element to be set
-     * @param index   the index at which to set the element
+     * @param source the array to copy from
+     * @param target the array to copy into
+     * @param length the number of elements to copy
+     * @param copier the function returning a copy of an element, or null to use the element clone method
+     * @param <E>    the type of the elements
+     * @return true if all elements were copied, false if an element couldn't be cloned
      */
-    private void setElement(E element, int index) {
-        stackArray[index] = element;
+    static <E> boolean copyElements(Object[] source, Object[] target, int length, UnaryOperator<E> copier) {
+        if (copier == SHARED_ELEMENTS) {
+            System.arraycopy(source, 0, target, 0, length);
+            return true;
+        }
+        if (copier != null) {
+            for (int i = 0; i < length; i++) {
+                target[i] = copier.apply((E) source[i]);
+            }
+            return true;
+        }
+        Class<?> lastType = null;
+        MethodHandle cloneMethod = null;
+        for (int i = 0; i < length; i++) {
+            Object element = source[i];
+            if (element == null)
+                continue;
+            if (element.getClass() != lastType) {
+                lastType = element.getClass();
+                cloneMethod = CLONE_METHODS.get(lastType);
+                if (cloneMethod == null)
+                    return false;
+            }
+            try {
+                target[i] = (Object) cloneMethod.invokeExact(element);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                return false;
+            }
+        }
+        return true;
     }
     /**
      * Returns an iterator over the elements in the stack.
@@ -116,6 +484,32 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
     public Iterator<E> iterator() {
         return new StackIterator();
     }
+    /**
+     * Returns a spliterator over the elements in the stack, from top to bottom.
+     * It splits the array in halves and knows the exact size of every part.
+     *
+     * @return a spliterator over the elements in the stack
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return new StackSpliterator(top + 1, 0);
+    }
+    /**
+     * Returns a sequential stream of the elements in the stack, from top to bottom.
+     *
+     * @return a stream over the stack
+     */
+    public Stream<E> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+    /**
+     * Returns a parallel stream of the elements in the stack, from top to bottom.
+     *
+     * @return a parallel stream over the stack
+     */
+    public Stream<E> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
     /**
      * An iterator implementation for iterating over the elements in the stack.
      */
@@ -133,5 +527,71 @@ public class ArrayStack<E extends Cloneable> implements Stack<E> {
             --currIndex;
             return element;
         }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            Object[] elements = stackArray;
+            for (int i = currIndex; i >= 0; i--) {
+                action.accept((E) elements[i]);
+            }
+            currIndex = -1;
+        }
+    }
+    /**
+     * A spliterator over the array indexes below {@code end} down to {@code fence}, visited from top to bottom.
+     * Splitting hands the upper half, which comes first, to the new spliterator.
+     */
+    private class StackSpliterator implements Spliterator<E> {
+        private int end;
+        private final int fence;
+
+        /**
+         * Constructs a spliterator over the array indexes from {@code end - 1} down to {@code fence}.
+         *
+         * @param end   the index after the first element visited
+         * @param fence the index of the last element visited
+         */
+        StackSpliterator(int end, int fence) {
+            this.end = end;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (end <= fence)
+                return false;
+            --end;
+            action.accept((E) stackArray[end]);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            Object[] elements = stackArray;
+            for (int i = end - 1; i >= fence; i--) {
+                action.accept((E) elements[i]);
+            }
+            end = fence;
+        }
+
+        @Override
+        public Spliterator<E> trySplit() {
+            int middle = (fence + end) >>> 1;
+            if (middle <= fence)
+                return null;
+            StackSpliterator prefix = new StackSpliterator(end, middle);
+            end = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - fence;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
+        }
     }
 }
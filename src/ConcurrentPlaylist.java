@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * A thread-safe playlist for many readers and rare writers.
+ * The playlist is published as a series of immutable versions. A reader takes the current version with a
+ * single volatile read and never blocks, so every iterator, stream and rendering sees one consistent version
+ * of the songs, filters and scanning order. A writer applies its change to a clone of the current version and
+ * publishes the clone; writers are serialized with each other but never wait for readers. The playlist stores
+ * copies of the songs added to it, so changing a song after adding it doesn't change a published version.
+ * <p>
+ * Changing the songs copies the index of the playlist, so a write costs O(n), which is worth it only while
+ * writes are rare; {@link #update(Consumer)} applies several changes with a single copy. Changing a filter or
+ * the scanning order shares the index and costs O(1). Songs read from the playlist must not be changed while
+ * other threads may read it, and neither must the canonical songs of a pooled playlist, which other
+ * playlists over the same pool may change.
+ */
+public class ConcurrentPlaylist implements Iterable<Song>, FilteredSongIterable, OrderedSongIterable {
+    private final Object writeLock = new Object();
+    private volatile Playlist current;
+
+    /**
+     * Constructs an empty playlist.
+     */
+    public ConcurrentPlaylist() {
+        this(null);
+    }
+
+    /**
+     * Constructs an empty playlist that stores the canonical songs of the given pool.
+     * The versions of a pooled playlist share the canonical songs instead of copying them.
+     *
+     * @param pool the pool of canonical songs, or null to store the added songs themselves
+     */
+    public ConcurrentPlaylist(SongPool pool) {
+        Playlist empty = new Playlist(pool);
+        empty.copyAddedSongs(true);
+        current = empty;
+    }
+
+    /**
+     * Applies changes to a clone of the current version and publishes it, so readers see either none or all
+     * of the changes. If the changes throw, nothing is published. Songs added by the changes are copied.
+     *
+     * @param changes the changes to apply to the playlist
+     */
+    public void update(Consumer<? super Playlist> changes) {
+        synchronized (writeLock) {
+            Playlist next = current.clone();
+            changes.accept(next);
+            publish(next);
+        }
+    }
+
+    /**
+     * Publishes a changed clone of the current version as the new current version.
+     * Must be called while holding the write lock.
+     *
+     * @param next the new version
+     */
+    private void publish(Playlist next) {
+        next.freeze();
+        current = next;
+    }
+
+    /**
+     * Adds a song to the playlist.
+     *
+     * @param song the song to add
+     * @throws SongAlreadyExistsException if the song already exists in the playlist
+     */
+    public void addSong(Song song) throws SongAlreadyExistsException {
+        synchronized (writeLock) {
+            if (current.containsSong(song))
+                throw new SongAlreadyExistsException("This song is already in the playlist");
+            update(playlist -> playlist.addSong(song));
+        }
+    }
+
+    /**
+     * Removes a song from the playlist.
+     *
+     * @param song the song to remove
+     * @return true if the song was removed, false otherwise
+     */
+    public boolean removeSong(Song song) {
+        synchronized (writeLock) {
+            if (!current.containsSong(song))
+                return false;
+            update(playlist -> playlist.removeSong(song));
+            return true;
+        }
+    }
+
+    /**
+     * Adds songs to the playlist with a single copy, skipping the songs already in it.
+     *
+     * @param songs the songs to add
+     * @return the skipped songs, in the order they were given
+     * @see Playlist#addAll(Iterable)
+     */
+    public List<Song> addAll(Iterable<? extends Song> songs) {
+        synchronized (writeLock) {
+            Playlist next = current.clone();
+            List<Song> rejected = next.addAll(songs);
+            publish(next);
+            return rejected;
+        }
+    }
+
+    /**
+     * Removes the songs equal to any of the given ones with a single copy.
+     *
+     * @param songs the songs to remove
+     * @return the number of removed songs
+     */
+    public int removeAll(Collection<? extends Song> songs) {
+        synchronized (writeLock) {
+            Playlist next = current.clone();
+            int removed = next.removeAll(songs);
+            if (removed != 0)
+                publish(next);
+            return removed;
+        }
+    }
+
+    /**
+     * Removes the songs passing a filter with a single copy.
+     *
+     * @param filter the filter selecting the songs to remove
+     * @return the number of removed songs
+     */
+    public int removeIf(Predicate<? super Song> filter) {
+        synchronized (writeLock) {
+            Playlist next = current.clone();
+            int removed = next.removeIf(filter);
+            if (removed != 0)
+                publish(next);
+            return removed;
+        }
+    }
+
+    /**
+     * Checks if the playlist contains a song equal to the given one.
+     *
+     * @param song the song to look for
+     * @return true if an equal song is in the playlist, false otherwise
+     */
+    public boolean containsSong(Song song) {
+        return current.containsSong(song);
+    }
+
+    /**
+     * Returns the song in the playlist that is equal to the given one.
+     *
+     * @param song the song to look for
+     * @return the stored song, or null if the playlist has no equal song
+     */
+    public Song getSong(Song song) {
+        return current.getSong(song);
+    }
+
+    /**
+     * Returns the number of songs in the playlist.
+     *
+     * @return the number of songs in the playlist
+     */
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * Returns the total duration of the songs of the current version passing the filters.
+     *
+     * @return the total duration in seconds
+     * @see Playlist#totalDuration()
+     */
+    public long totalDuration() {
+        return current.totalDuration();
+    }
+
+    /**
+     * Filters the playlist by artist name.
+     *
+     * @param artist the artist name to filter by
+     */
+    @Override
+    public void filterArtist(String artist) {
+        update(playlist -> playlist.filterArtist(artist));
+    }
+
+    /**
+     * Filters the playlist by song genre.
+     *
+     * @param genre the genre to filter by
+     */
+    @Override
+    public void filterGenre(Song.Genre genre) {
+        update(playlist -> playlist.filterGenre(genre));
+    }
+
+    /**
+     * Filters the playlist by maximum song duration.
+     *
+     * @param duration the maximum duration to filter by
+     */
+    @Override
+    public void filterDuration(int duration) {
+        update(playlist -> playlist.filterDuration(duration));
+    }
+
+    /**
+     * Filters the playlist by a filter expression, in addition to the artist, genre and duration filters.
+     *
+     * @param filter the filter expression, or {@link SongFilter#all()} to remove it
+     */
+    public void filter(SongFilter filter) {
+        update(playlist -> playlist.filter(filter));
+    }
+
+    /**
+     * Returns the filter expression combining all filters of the playlist.
+     *
+     * @return the combined filter of the playlist
+     */
+    public SongFilter getFilter() {
+        return current.getFilter();
+    }
+
+    /**
+     * Sets the scanning order for iterating over the playlist.
+     *
+     * @param order the scanning order to set
+     */
+    @Override
+    public void setScanningOrder(ScanningOrder order) {
+        update(playlist -> playlist.setScanningOrder(order));
+    }
+
+    /**
+     * Returns a query over the current version of the playlist, passing every song in adding order.
+     * The query keeps reading that version after later writes, so it sees one consistent set of songs.
+     *
+     * @return a query over the current version of the playlist
+     * @see Playlist#query()
+     */
+    public PlaylistQuery query() {
+        return current.query();
+    }
+
+    /**
+     * Returns an iterator over the current version of the playlist, unaffected by later writes.
+     *
+     * @return an iterator over the playlist
+     */
+    @Override
+    public Iterator<Song> iterator() {
+        return current.iterator();
+    }
+
+    /**
+     * Returns one page of the current version of the playlist, in the scanning order.
+     *
+     * @param offset the number of matching songs to skip
+     * @param limit  the maximum number of songs to return
+     * @return the songs of the page, unmodifiable
+     * @throws IllegalArgumentException if the offset or the limit is negative
+     * @see Playlist#page(int, int)
+     */
+    public List<Song> page(int offset, int limit) {
+        return current.page(offset, limit);
+    }
+
+    /**
+     * Returns a spliterator over the current version of the playlist, unaffected by later writes.
+     *
+     * @return a spliterator over the playlist
+     */
+    @Override
+    public Spliterator<Song> spliterator() {
+        return current.spliterator();
+    }
+
+    /**
+     * Returns a sequential stream over the current version of the playlist, unaffected by later writes.
+     *
+     * @return a stream over the playlist
+     */
+    public Stream<Song> stream() {
+        return current.stream();
+    }
+
+    /**
+     * Returns a parallel stream over the current version of the playlist, unaffected by later writes.
+     *
+     * @return a parallel stream over the playlist
+     */
+    public Stream<Song> parallelStream() {
+        return current.parallelStream();
+    }
+
+    /**
+     * Returns a copy of the current version of the playlist, which the caller may change freely.
+     * The songs are copied right away, so the copy shares nothing with the versions other threads read.
+     *
+     * @return a copy of the current version of the playlist
+     */
+    public Playlist snapshot() {
+        synchronized (writeLock) {
+            Playlist copy = current.detachedClone();
+            copy.copyAddedSongs(false);
+            return copy;
+        }
+    }
+
+    /**
+     * Writes the string representation of the current version of the playlist to the given output.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output fails
+     */
+    public void writeTo(Appendable out) throws IOException {
+        current.writeTo(out);
+    }
+
+    /**
+     * Writes the string representation of the current version of the playlist to the given writer.
+     *
+     * @param writer the writer to write to
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer writer) throws IOException {
+        current.writeTo(writer);
+    }
+
+    /**
+     * Returns a string representation of the current version of the playlist.
+     *
+     * @return a string representation of the playlist
+     */
+    @Override
+    public String toString() {
+        return current.toString();
+    }
+}
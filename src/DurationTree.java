@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ * A Fenwick tree counting songs and summing their durations over int keys from 0, such as slots or durations.
+ * Updating a key and summing a prefix of keys take O(log n), and so does finding the longest prefix of keys
+ * whose durations fit in a budget. The tree grows as larger keys are added.
+ */
+class DurationTree {
+    private int[] counts;
+    private long[] sums;
+
+    /**
+     * Constructs an empty tree.
+     *
+     * @param capacity the number of keys to make room for, rounded up to a power of two
+     */
+    DurationTree(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        counts = new int[size + 1];
+        sums = new long[size + 1];
+    }
+
+    /**
+     * Constructs a tree holding one song for each of the first keys, with the given durations, in O(n).
+     *
+     * @param capacity  the number of keys to make room for, at least {@code count}
+     * @param durations the durations of the songs, by key
+     * @param count     the number of keys holding a song
+     */
+    DurationTree(int capacity, int[] durations, int count) {
+        this(capacity);
+        for (int key = 0; key < count; key++) {
+            counts[key + 1] = 1;
+            sums[key + 1] = durations[key];
+        }
+        for (int node = 1; node < counts.length; node++) {
+            int parent = node + (node & -node);
+            if (parent < counts.length) {
+                counts[parent] += counts[node];
+                sums[parent] += sums[node];
+            }
+        }
+    }
+
+    /**
+     * Constructs a copy of a tree.
+     *
+     * @param source the tree to copy
+     */
+    DurationTree(DurationTree source) {
+        counts = source.counts.clone();
+        sums = source.sums.clone();
+    }
+
+    /**
+     * Adds songs to a key, or removes them with a negative count.
+     *
+     * @param key      the key, at least 0
+     * @param count    the number of songs to add
+     * @param duration the total duration of the songs to add
+     */
+    void add(int key, int count, long duration) {
+        while (key >= capacity()) {
+            grow();
+        }
+        for (int node = key + 1; node < counts.length; node += node & -node) {
+            counts[node] += count;
+            sums[node] += duration;
+        }
+    }
+
+    /**
+     * Returns the number of songs of the keys below the given one.
+     *
+     * @param end the key after the last key counted
+     * @return the number of songs
+     */
+    int count(int end) {
+        int count = 0;
+        for (int node = Math.min(end, capacity()); node > 0; node -= node & -node) {
+            count += counts[node];
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total duration of the songs of the keys below the given one.
+     *
+     * @param end the key after the last key summed
+     * @return the total duration
+     */
+    long sum(int end) {
+        long sum = 0;
+        for (int node = Math.min(end, capacity()); node > 0; node -= node & -node) {
+            sum += sums[node];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the end of the longest prefix of keys whose songs fit in a budget, walking down the tree.
+     * Requires every key to hold a non-negative total duration.
+     *
+     * @param budget the total duration the songs must fit in
+     * @return the key after the last key of the prefix
+     */
+    int longestPrefix(long budget) {
+        int end = 0;
+        for (int step = capacity(); step > 0; step >>= 1) {
+            int node = end + step;
+            if (node < sums.length && sums[node] <= budget) {
+                end = node;
+                budget -= sums[node];
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the number of keys the tree has room for.
+     *
+     * @return the capacity of the tree, a power of two
+     */
+    int capacity() {
+        return counts.length - 1;
+    }
+
+    /**
+     * Doubles the capacity of the tree. The new root covers every key, so it starts with the old totals,
+     * which the old root holds; every other new node covers only new, empty keys.
+     */
+    private void grow() {
+        int capacity = capacity();
+        counts = Arrays.copyOf(counts, 2 * capacity + 1);
+        sums = Arrays.copyOf(sums, 2 * capacity + 1);
+        counts[2 * capacity] = counts[capacity];
+        sums[2 * capacity] = sums[capacity];
+    }
+}
@@ -0,0 +1,407 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A stack of int values using an array, so pushing and popping neither box nor allocate.
+ * It has the same capacity semantics as {@link ArrayStack}: the stack either has a fixed capacity or grows its
+ * array as needed, see {@link ArrayStack.GrowthPolicy}.
+ */
+public class IntStack implements Cloneable {
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MIN_GROWN_CAPACITY = 8;
+    private static final EmptyStackException PREALLOCATED_EMPTY =
+            new EmptyStackException("Stack is empty", null, false, false);
+    private static final StackOverflowException PREALLOCATED_FULL =
+            new StackOverflowException("Stack is full", null, false, false);
+
+    private final int maxSize;
+    private final ArrayStack.GrowthPolicy growthPolicy;
+    private int[] stackArray;
+    private int top;
+    private boolean stacklessExceptions;
+
+    /**
+     * Constructs an empty stack with the specified capacity.
+     *
+     * @param capacity the maximum capacity of the stack
+     * @throws NegativeCapacityException if the specified capacity is negative
+     */
+    public IntStack(int capacity) throws NegativeCapacityException {
+        this(capacity, ArrayStack.GrowthPolicy.FIXED);
+    }
+
+    /**
+     * Constructs an empty stack with the specified capacity and growth policy.
+     * For a growing stack the capacity is only the initial size of its array.
+     *
+     * @param capacity     the maximum capacity of a fixed stack, or the initial capacity of a growing one
+     * @param growthPolicy the way the array of the stack follows its size
+     * @throws NegativeCapacityException if the specified capacity is negative
+     */
+    public IntStack(int capacity, ArrayStack.GrowthPolicy growthPolicy) throws NegativeCapacityException {
+        if (capacity < 0)
+            throw new NegativeCapacityException("Capacity can't be negative");
+        this.maxSize = capacity;
+        this.stackArray = new int[capacity];
+        this.top = -1;
+        this.growthPolicy = growthPolicy;
+    }
+
+    /**
+     * Adds a value to the top of the stack.
+     *
+     * @param value the value to be added
+     * @throws StackOverflowException if the stack is full
+     */
+    public void push(int value) throws StackOverflowException {
+        if (top == stackArray.length - 1)
+            grow(top + 2);
+        stackArray[++top] = value;
+    }
+
+    /**
+     * Adds a value to the top of the stack unless it is full.
+     *
+     * @param value the value to be added
+     * @return true if the value was added, false if the stack is full
+     */
+    public boolean offer(int value) {
+        if (top == stackArray.length - 1) {
+            if (growthPolicy == ArrayStack.GrowthPolicy.FIXED || top + 2 > MAX_ARRAY_SIZE)
+                return false;
+            grow(top + 2);
+        }
+        stackArray[++top] = value;
+        return true;
+    }
+
+    /**
+     * Adds values to the top of the stack with a single array copy.
+     * The values are pushed in order, so the last one ends up on top. Either all values are added or, if they
+     * don't fit, none of them.
+     *
+     * @param values the values to be added
+     * @throws StackOverflowException if the values don't fit in the stack
+     */
+    public void pushAll(int... values) throws StackOverflowException {
+        if (values.length == 0)
+            return;
+        int newSize = top + 1 + values.length;
+        if (newSize < 0 || newSize > stackArray.length)
+            grow(newSize);
+        System.arraycopy(values, 0, stackArray, top + 1, values.length);
+        top = newSize - 1;
+    }
+
+    /**
+     * Removes and returns the value at the top of the stack.
+     *
+     * @return the value at the top of the stack
+     * @throws EmptyStackException if the stack is empty
+     */
+    public int pop() throws EmptyStackException {
+        if (isEmpty())
+            throw emptyStack();
+        int value = stackArray[top];
+        --top;
+        shrink();
+        return value;
+    }
+
+    /**
+     * Removes and returns the specified number of values from the top of the stack.
+     * Either all of them are removed or, if the stack holds fewer values, none of them.
+     *
+     * @param count the number of values to remove
+     * @return the removed values, from top to bottom
+     * @throws EmptyStackException if the stack holds fewer than count values
+     * @throws IllegalArgumentException if count is negative
+     */
+    public int[] popN(int count) throws EmptyStackException {
+        if (count < 0)
+            throw new IllegalArgumentException("Count can't be negative");
+        if (count > size())
+            throw new EmptyStackException("Stack has fewer than " + count + " elements");
+        int[] popped = new int[count];
+        for (int i = 0; i < count; i++) {
+            popped[i] = stackArray[top - i];
+        }
+        top -= count;
+        shrink();
+        return popped;
+    }
+
+    /**
+     * Returns the value at the top of the stack without removing it.
+     *
+     * @return the value at the top of the stack
+     * @throws EmptyStackException if the stack is empty
+     */
+    public int peek() throws EmptyStackException {
+        if (isEmpty())
+            throw emptyStack();
+        return stackArray[top];
+    }
+
+    /**
+     * Removes all values from the stack, shrinking the array to the initial capacity if the policy allows it.
+     */
+    public void clear() {
+        top = -1;
+        shrink();
+    }
+
+    /**
+     * Sets whether an empty or full stack throws a shared, preallocated exception without a stack trace
+     * instead of creating a new one. This makes hitting the bounds cheap in loops that rely on the exceptions.
+     *
+     * @param stackless true to throw preallocated exceptions, false to create a new exception each time
+     */
+    public void setStacklessExceptions(boolean stackless) {
+        this.stacklessExceptions = stackless;
+    }
+
+    /**
+     * Returns the exception to throw when the stack is empty.
+     *
+     * @return the exception
+     */
+    private EmptyStackException emptyStack() {
+        return stacklessExceptions ? PREALLOCATED_EMPTY : new EmptyStackException("Stack is empty");
+    }
+
+    /**
+     * Returns the exception to throw when the stack is full.
+     *
+     * @return the exception
+     */
+    private StackOverflowException fullStack() {
+        return stacklessExceptions ? PREALLOCATED_FULL : new StackOverflowException("Stack is full");
+    }
+
+    /**
+     * Returns the number of values in the stack.
+     *
+     * @return the number of values in the stack
+     */
+    public int size() {
+        return top + 1;
+    }
+
+    /**
+     * Checks if the stack is empty.
+     *
+     * @return true if the stack is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return top == -1;
+    }
+
+    /**
+     * Returns the number of values the stack can hold before its array has to grow.
+     *
+     * @return the current capacity of the stack
+     */
+    public int capacity() {
+        return stackArray.length;
+    }
+
+    /**
+     * Makes sure the stack can hold the specified number of values without growing again.
+     *
+     * @param minCapacity the number of values the stack should be able to hold
+     * @throws StackOverflowException if the stack has a fixed capacity smaller than minCapacity
+     */
+    public void ensureCapacity(int minCapacity) throws StackOverflowException {
+        if (minCapacity > stackArray.length)
+            grow(minCapacity);
+    }
+
+    /**
+     * Shrinks the array of a growing stack to the number of values in it.
+     * A stack with a fixed capacity keeps its array.
+     */
+    public void trimToSize() {
+        if (growthPolicy != ArrayStack.GrowthPolicy.FIXED && stackArray.length > size())
+            stackArray = Arrays.copyOf(stackArray, size());
+    }
+
+    /**
+     * Grows the array so it can hold at least the specified number of values.
+     * The array grows by half of its length, so repeated pushes cost amortized O(1).
+     *
+     * @param minCapacity the number of values the array should be able to hold
+     * @throws StackOverflowException if the stack has a fixed capacity or the capacity can't grow further
+     */
+    private void grow(int minCapacity) throws StackOverflowException {
+        if (growthPolicy == ArrayStack.GrowthPolicy.FIXED)
+            throw fullStack();
+        if (minCapacity < 0 || minCapacity > MAX_ARRAY_SIZE)
+            throw new StackOverflowException("Stack can't grow any further");
+        int length = stackArray.length;
+        int newCapacity = length + (length >> 1);
+        if (newCapacity < 0 || newCapacity > MAX_ARRAY_SIZE)
+            newCapacity = MAX_ARRAY_SIZE;
+        newCapacity = Math.max(newCapacity, Math.max(minCapacity, MIN_GROWN_CAPACITY));
+        stackArray = Arrays.copyOf(stackArray, newCapacity);
+    }
+
+    /**
+     * Shrinks the array to half as long as many times as the policy allows it, copying it at most once.
+     */
+    private void shrink() {
+        if (growthPolicy != ArrayStack.GrowthPolicy.GROW_AND_SHRINK)
+            return;
+        int length = stackArray.length;
+        while (length > maxSize && top + 1 <= length / 4) {
+            length = Math.max(length / 2, maxSize);
+        }
+        if (length != stackArray.length)
+            stackArray = Arrays.copyOf(stackArray, length);
+    }
+
+    /**
+     * Creates a copy of the stack with a single copy of its array.
+     *
+     * @return a new stack holding the same values
+     */
+    @Override
+    public IntStack clone() {
+        try {
+            IntStack newStack = (IntStack) super.clone();
+            newStack.stackArray = Arrays.copyOf(stackArray, stackArray.length);
+            return newStack;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns an iterator over the values in the stack, from top to bottom.
+     * Its {@code nextInt} method returns the values without boxing them.
+     *
+     * @return an iterator over the values in the stack
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new StackIterator();
+    }
+
+    /**
+     * Returns a spliterator over the values in the stack, from top to bottom.
+     * It splits the array in halves and knows the exact size of every part.
+     *
+     * @return a spliterator over the values in the stack
+     */
+    public Spliterator.OfInt spliterator() {
+        return new StackSpliterator(top + 1, 0);
+    }
+
+    /**
+     * Returns a sequential stream of the values in the stack, from top to bottom.
+     *
+     * @return a stream over the stack
+     */
+    public IntStream stream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream of the values in the stack, from top to bottom.
+     *
+     * @return a parallel stream over the stack
+     */
+    public IntStream parallelStream() {
+        return StreamSupport.intStream(spliterator(), true);
+    }
+
+    /**
+     * An iterator over the values in the stack, from top to bottom.
+     */
+    private class StackIterator implements PrimitiveIterator.OfInt {
+        private int currIndex = top;
+
+        @Override
+        public boolean hasNext() {
+            return currIndex >= 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (currIndex < 0)
+                throw new NoSuchElementException();
+            return stackArray[currIndex--];
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            int[] values = stackArray;
+            for (int i = currIndex; i >= 0; i--) {
+                action.accept(values[i]);
+            }
+            currIndex = -1;
+        }
+    }
+
+    /**
+     * A spliterator over the array indexes below {@code end} down to {@code fence}, visited from top to bottom.
+     * Splitting hands the upper half, which comes first, to the new spliterator.
+     */
+    private class StackSpliterator implements Spliterator.OfInt {
+        private int end;
+        private final int fence;
+
+        /**
+         * Constructs a spliterator over the array indexes from {@code end - 1} down to {@code fence}.
+         *
+         * @param end   the index after the first value visited
+         * @param fence the index of the last value visited
+         */
+        StackSpliterator(int end, int fence) {
+            this.end = end;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (end <= fence)
+                return false;
+            --end;
+            action.accept(stackArray[end]);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            int[] values = stackArray;
+            for (int i = end - 1; i >= fence; i--) {
+                action.accept(values[i]);
+            }
+            end = fence;
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            int middle = (fence + end) >>> 1;
+            if (middle <= fence)
+                return null;
+            StackSpliterator prefix = new StackSpliterator(end, middle);
+            end = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - fence;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A generic thread-safe stack implementation that never blocks.
+ * The stack is a linked list whose head is swapped with compare-and-set. When the head is contended, a push
+ * and a pop can meet in an elimination array and exchange the element without touching the head at all.
+ *
+ * @param <E> the type of elements in the stack
+ */
+public class LockFreeStack<E extends Cloneable> implements Stack<E> {
+    private static final int ELIMINATION_SPINS = 64;
+
+    private final int maxSize;
+    private final AtomicReference<Node<E>> head;
+    private final AtomicReferenceArray<Node<E>> eliminationArray;
+    private final LongAdder eliminations = new LongAdder();
+
+    /**
+     * Constructs an empty stack with the specified capacity.
+     *
+     * @param capacity the maximum capacity of the stack
+     * @throws NegativeCapacityException if the specified capacity is negative
+     */
+    public LockFreeStack(int capacity) throws NegativeCapacityException {
+        if (capacity < 0)
+            throw new NegativeCapacityException("Capacity can't be negative");
+        this.maxSize = capacity;
+        this.head = new AtomicReference<>();
+        this.eliminationArray = new AtomicReferenceArray<>(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Adds an element to the top of the stack.
+     *
+     * @param element the element to be added
+     * @throws StackOverflowException if the stack is full
+     */
+    @Override
+    public void push(E element) throws StackOverflowException {
+        if (!offer(element))
+            throw new StackOverflowException("Stack is full");
+    }
+
+    /**
+     * Adds an element to the top of the stack unless it is full.
+     *
+     * @param element the element to be added
+     * @return true if the element was added, false if the stack is full
+     */
+    public boolean offer(E element) {
+        Node<E> node = new Node<>(element);
+        while (true) {
+            Node<E> top = head.get();
+            int size = top == null ? 0 : top.depth;
+            if (size == maxSize)
+                return false;
+            node.next = top;
+            node.depth = size + 1;
+            if (head.compareAndSet(top, node))
+                return true;
+            if (offerToPopper(node))
+                return true;
+        }
+    }
+
+    /**
+     * Removes and returns the element at the top of the stack.
+     *
+     * @return the element at the top of the stack
+     * @throws EmptyStackException if the stack is empty
+     */
+    @Override
+    public E pop() throws EmptyStackException {
+        Node<E> node = removeTop();
+        if (node == null)
+            throw new EmptyStackException("Stack is empty");
+        return node.element;
+    }
+
+    /**
+     * Removes and returns the element at the top of the stack unless it is empty.
+     * A stack that may hold null elements should use {@link #pop()} instead.
+     *
+     * @return the element at the top of the stack, or null if the stack is empty
+     */
+    public E poll() {
+        Node<E> node = removeTop();
+        return node == null ? null : node.element;
+    }
+
+    /**
+     * Removes the node at the top of the stack, or takes one from a concurrent push.
+     *
+     * @return the removed node, or null if the stack is empty
+     */
+    private Node<E> removeTop() {
+        while (true) {
+            Node<E> top = head.get();
+            if (top == null)
+                return null;
+            if (head.compareAndSet(top, top.next))
+                return top;
+            Node<E> offer = takeFromPusher();
+            if (offer != null)
+                return offer;
+        }
+    }
+
+    /**
+     * Returns the element at the top of the stack without removing it.
+     *
+     * @return the element at the top of the stack
+     * @throws EmptyStackException if the stack is empty
+     */
+    @Override
+    public E peek() throws EmptyStackException {
+        Node<E> top = head.get();
+        if (top == null)
+            throw new EmptyStackException("Stack is empty");
+        return top.element;
+    }
+
+    /**
+     * Returns the element at the top of the stack without removing it, unless it is empty.
+     *
+     * @return the element at the top of the stack, or null if the stack is empty
+     */
+    public E peekOrNull() {
+        Node<E> top = head.get();
+        return top == null ? null : top.element;
+    }
+
+    /**
+     * Returns the number of elements in the stack.
+     *
+     * @return the number of elements in the stack
+     */
+    @Override
+    public int size() {
+        Node<E> top = head.get();
+        return top == null ? 0 : top.depth;
+    }
+
+    /**
+     * Checks if the stack is empty.
+     *
+     * @return true if the stack is empty, false otherwise
+     */
+    @Override
+    public boolean isEmpty() {
+        return head.get() == null;
+    }
+
+    /**
+     * Creates a deep copy of the stack as it was at one moment.
+     *
+     * @return a new stack that is a deep copy of this stack, or null if an element can't be cloned
+     */
+    @Override
+    public LockFreeStack<E> clone() {
+        Node<E> top = head.get();
+        int size = top == null ? 0 : top.depth;
+        Object[] elements = new Object[size];
+        for (Node<E> node = top; node != null; node = node.next) {
+            elements[node.depth - 1] = node.element;
+        }
+        Object[] copies = new Object[size];
+        if (!ArrayStack.copyElements(elements, copies, size, null))
+            return null;
+        LockFreeStack<E> newStack = new LockFreeStack<>(maxSize);
+        Node<E> newTop = null;
+        for (int i = 0; i < size; i++) {
+            Node<E> node = new Node<>((E) copies[i]);
+            node.next = newTop;
+            node.depth = i + 1;
+            newTop = node;
+        }
+        newStack.head.set(newTop);
+        return newStack;
+    }
+
+    /**
+     * Returns an iterator over the elements of the stack as they were when the iterator was created.
+     *
+     * @return an iterator over the elements in the stack
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new StackIterator();
+    }
+
+    /**
+     * Places a pushed node in a random slot of the elimination array and waits briefly for a pop to take it.
+     *
+     * @param node the node being pushed
+     * @return true if a pop took the node, false if the push has to retry on the stack
+     */
+    private boolean offerToPopper(Node<E> node) {
+        int slot = ThreadLocalRandom.current().nextInt(eliminationArray.length());
+        if (!eliminationArray.compareAndSet(slot, null, node))
+            return false;
+        for (int i = 0; i < ELIMINATION_SPINS; i++) {
+            if (eliminationArray.get(slot) != node)
+                return true;
+            Thread.onSpinWait();
+        }
+        return !eliminationArray.compareAndSet(slot, node, null);
+    }
+
+    /**
+     * Takes a node offered by a concurrent push from a random slot of the elimination array.
+     *
+     * @return the node that was taken, or null if the slot was empty or taken by another pop
+     */
+    private Node<E> takeFromPusher() {
+        int slot = ThreadLocalRandom.current().nextInt(eliminationArray.length());
+        Node<E> offer = eliminationArray.get(slot);
+        if (offer != null && eliminationArray.compareAndSet(slot, offer, null)) {
+            eliminations.increment();
+            return offer;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of pops that took their element from a concurrent push in the elimination array.
+     * Used by stress runs to check that the elimination path was exercised.
+     *
+     * @return the number of eliminated push and pop pairs
+     */
+    long eliminations() {
+        return eliminations.sum();
+    }
+
+    /**
+     * A node of the stack, holding an element and the number of elements up to and including it.
+     * The links are written before the node is published by a compare-and-set and never change afterwards.
+     *
+     * @param <E> the type of the element
+     */
+    private static class Node<E> {
+        private final E element;
+        private Node<E> next;
+        private int depth;
+
+        /**
+         * Constructs a node holding the specified element.
+         *
+         * @param element the element of the node
+         */
+        private Node(E element) {
+            this.element = element;
+        }
+    }
+
+    /**
+     * An iterator implementation for iterating over the elements in the stack, from top to bottom.
+     */
+    public class StackIterator implements Iterator<E> {
+        private Node<E> current = head.get();
+
+        @Override
+        public boolean hasNext() {
+            return current != null;
+        }
+
+        @Override
+        public E next() {
+            if (current == null)
+                throw new NoSuchElementException();
+            E element = current.element;
+            current = current.next;
+            return element;
+        }
+    }
+}
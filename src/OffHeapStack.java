@@ -0,0 +1,312 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A generic stack keeping its elements outside the heap, as fixed-width records in a direct byte buffer.
+ * A {@link RecordCodec} writes every pushed element as a record and reads it back when it is popped or peeked,
+ * so the stack holds no references: millions of elements add no objects for the garbage collector to trace.
+ * {@link #drop()} and {@link #forEachRecord(ObjIntConsumer)} work on the records directly and allocate nothing.
+ * <p>
+ * The stack follows the same {@link ArrayStack.GrowthPolicy} as {@link ArrayStack}. A buffer is indexed by
+ * int, so a stack holds at most {@code Integer.MAX_VALUE / recordSize} records.
+ *
+ * @param <E> the type of elements in the stack
+ */
+public class OffHeapStack<E extends Cloneable> implements Stack<E> {
+    private static final int MIN_GROWN_CAPACITY = 8;
+
+    private final RecordCodec<E> codec;
+    private final int recordSize;
+    private final int maxRecords;
+    private final int initialCapacity;
+    private final ArrayStack.GrowthPolicy growthPolicy;
+    private ByteBuffer buffer;
+    private ByteBuffer records;
+    private int size;
+
+    /**
+     * Constructs an empty stack with the specified capacity.
+     *
+     * @param codec    the codec writing and reading the records
+     * @param capacity the maximum number of elements in the stack
+     * @throws NegativeCapacityException if the specified capacity is negative
+     * @throws IllegalArgumentException  if the records of the capacity don't fit in a buffer
+     */
+    public OffHeapStack(RecordCodec<E> codec, int capacity) throws NegativeCapacityException {
+        this(codec, capacity, ArrayStack.GrowthPolicy.FIXED);
+    }
+
+    /**
+     * Constructs an empty stack with the specified capacity and growth policy.
+     * For a growing stack the capacity is only the initial number of records of its buffer.
+     *
+     * @param codec        the codec writing and reading the records
+     * @param capacity     the maximum capacity of a fixed stack, or the initial capacity of a growing one
+     * @param growthPolicy the way the buffer of the stack follows its size
+     * @throws NegativeCapacityException if the specified capacity is negative
+     * @throws IllegalArgumentException  if the record size isn't positive, or the records of the capacity
+     *                                   don't fit in a buffer
+     */
+    public OffHeapStack(RecordCodec<E> codec, int capacity, ArrayStack.GrowthPolicy growthPolicy)
+            throws NegativeCapacityException {
+        if (capacity < 0)
+            throw new NegativeCapacityException("Capacity can't be negative");
+        this.codec = codec;
+        this.recordSize = codec.recordSize();
+        if (recordSize <= 0)
+            throw new IllegalArgumentException("Record size must be positive");
+        this.maxRecords = Integer.MAX_VALUE / recordSize;
+        if (capacity > maxRecords)
+            throw new IllegalArgumentException("Capacity exceeds " + maxRecords + " records");
+        this.initialCapacity = capacity;
+        this.growthPolicy = growthPolicy;
+        allocate(capacity);
+    }
+
+    /**
+     * Adds an element to the top of the stack.
+     *
+     * @param element the element to be added
+     * @throws StackOverflowException if the stack is full
+     */
+    @Override
+    public void push(E element) throws StackOverflowException {
+        if (size == capacity())
+            grow(size + 1);
+        codec.encode(element, buffer, size * recordSize);
+        ++size;
+    }
+
+    /**
+     * Adds an element to the top of the stack unless it is full.
+     *
+     * @param element the element to be added
+     * @return true if the element was added, false if the stack is full
+     */
+    public boolean offer(E element) {
+        if (size == capacity()) {
+            if (growthPolicy == ArrayStack.GrowthPolicy.FIXED || size == maxRecords)
+                return false;
+            grow(size + 1);
+        }
+        codec.encode(element, buffer, size * recordSize);
+        ++size;
+        return true;
+    }
+
+    /**
+     * Removes and returns the element at the top of the stack.
+     *
+     * @return the element at the top of the stack
+     * @throws EmptyStackException if the stack is empty
+     */
+    @Override
+    public E pop() throws EmptyStackException {
+        E element = peek();
+        drop();
+        return element;
+    }
+
+    /**
+     * Removes and returns the element at the top of the stack unless it is empty.
+     *
+     * @return the element at the top of the stack, or null if the stack is empty
+     */
+    public E poll() {
+        return isEmpty() ? null : pop();
+    }
+
+    /**
+     * Removes the element at the top of the stack without reading it.
+     *
+     * @throws EmptyStackException if the stack is empty
+     */
+    public void drop() throws EmptyStackException {
+        if (isEmpty())
+            throw new EmptyStackException("Stack is empty");
+        --size;
+        shrink();
+    }
+
+    /**
+     * Returns the element at the top of the stack without removing it.
+     *
+     * @return the element at the top of the stack
+     * @throws EmptyStackException if the stack is empty
+     */
+    @Override
+    public E peek() throws EmptyStackException {
+        if (isEmpty())
+            throw new EmptyStackException("Stack is empty");
+        return codec.decode(records, (size - 1) * recordSize);
+    }
+
+    /**
+     * Passes the offset of every record in the stack to an action, from top to bottom, without reading the
+     * elements. The action reads the fields it needs from the given read-only buffer with its absolute methods.
+     * The stack must not be changed by the action.
+     *
+     * @param action the action receiving the buffer of the records and the offset of each record
+     */
+    public void forEachRecord(ObjIntConsumer<? super ByteBuffer> action) {
+        for (int offset = (size - 1) * recordSize; offset >= 0; offset -= recordSize) {
+            action.accept(records, offset);
+        }
+    }
+
+    /**
+     * Removes all elements from the stack, shrinking the buffer to the initial capacity if the policy allows it.
+     */
+    public void clear() {
+        size = 0;
+        shrink();
+    }
+
+    /**
+     * Returns the number of elements in the stack.
+     *
+     * @return the number of elements in the stack
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the stack is empty.
+     *
+     * @return true if the stack is empty, false otherwise
+     */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of elements the stack can hold before its buffer has to grow.
+     *
+     * @return the current capacity of the stack
+     */
+    public int capacity() {
+        return buffer.capacity() / recordSize;
+    }
+
+    /**
+     * Makes sure the stack can hold the specified number of elements without growing again.
+     *
+     * @param minCapacity the number of elements the stack should be able to hold
+     * @throws StackOverflowException if the stack has a fixed capacity smaller than minCapacity
+     */
+    public void ensureCapacity(int minCapacity) throws StackOverflowException {
+        if (minCapacity > capacity())
+            grow(minCapacity);
+    }
+
+    /**
+     * Grows the buffer so it can hold at least the specified number of records.
+     * The buffer grows by half of its capacity, so repeated pushes cost amortized O(1).
+     *
+     * @param minCapacity the number of records the buffer should be able to hold
+     * @throws StackOverflowException if the stack has a fixed capacity or the capacity can't grow further
+     */
+    private void grow(int minCapacity) throws StackOverflowException {
+        if (growthPolicy == ArrayStack.GrowthPolicy.FIXED)
+            throw new StackOverflowException("Stack is full");
+        if (minCapacity < 0 || minCapacity > maxRecords)
+            throw new StackOverflowException("Stack can't grow any further");
+        int capacity = capacity();
+        int newCapacity = capacity + (capacity >> 1);
+        if (newCapacity < 0 || newCapacity > maxRecords)
+            newCapacity = maxRecords;
+        reallocate(Math.max(newCapacity, Math.max(minCapacity, Math.min(MIN_GROWN_CAPACITY, maxRecords))));
+    }
+
+    /**
+     * Shrinks the buffer to half its capacity as many times as the policy allows it, copying it at most once.
+     */
+    private void shrink() {
+        if (growthPolicy != ArrayStack.GrowthPolicy.GROW_AND_SHRINK)
+            return;
+        int capacity = capacity();
+        while (capacity > initialCapacity && size <= capacity / 4) {
+            capacity = Math.max(capacity / 2, initialCapacity);
+        }
+        if (capacity != capacity())
+            reallocate(capacity);
+    }
+
+    /**
+     * Moves the records of the stack to a new buffer of the given capacity.
+     * The old buffer is freed once it is garbage collected.
+     *
+     * @param capacity the number of records of the new buffer, at least the size of the stack
+     */
+    private void reallocate(int capacity) {
+        ByteBuffer used = buffer.duplicate();
+        used.position(0).limit(size * recordSize);
+        allocate(capacity);
+        buffer.put(used);
+    }
+
+    /**
+     * Replaces the buffer of the stack by a new, empty one.
+     *
+     * @param capacity the number of records of the new buffer
+     */
+    private void allocate(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity * recordSize).order(ByteOrder.nativeOrder());
+        records = buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates a copy of the stack. The records are values, so copying them copies the elements.
+     *
+     * @return a new stack with a copy of the records of this stack
+     */
+    @Override
+    public OffHeapStack<E> clone() {
+        OffHeapStack<E> newStack = new OffHeapStack<>(codec, initialCapacity, growthPolicy);
+        if (newStack.capacity() != capacity())
+            newStack.allocate(capacity());
+        ByteBuffer used = buffer.duplicate();
+        used.position(0).limit(size * recordSize);
+        newStack.buffer.put(used);
+        newStack.size = size;
+        return newStack;
+    }
+
+    /**
+     * Returns an iterator over the elements in the stack, from top to bottom.
+     * Every element is read from its record when it is returned.
+     *
+     * @return an iterator over the elements in the stack
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new RecordIterator();
+    }
+
+    /**
+     * An iterator reading the records of the stack from top to bottom.
+     */
+    private class RecordIterator implements Iterator<E> {
+        private int offset = (size - 1) * recordSize;
+
+        @Override
+        public boolean hasNext() {
+            return offset >= 0;
+        }
+
+        @Override
+        public E next() {
+            if (offset < 0)
+                throw new NoSuchElementException();
+            E element = codec.decode(records, offset);
+            offset -= recordSize;
+            return element;
+        }
+    }
+}
@@ -1,41 +1,77 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.SplittableRandom;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Represents a playlist of songs.
  * Implements Cloneable, Iterable, FilteredSongIterable, and OrderedSongIterable interfaces.
  */
 public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable, OrderedSongIterable {
-    private ArrayList<Song> playlist;
-    private ScanningOrder scanningOrder;
-    private String filterArtist;
-    private Song.Genre filterGenre;
-    private int filterDuration;
+    /**
+     * Orders songs by name, followed by the artist name.
+     */
+    static final Comparator<Song> NAME_ORDER =
+            Comparator.comparing(Song::getName).thenComparing(Song::getArtist);
+
+    /**
+     * Orders songs by duration, followed by the song name, and then the artist name.
+     */
+    static final Comparator<Song> DURATION_ORDER =
+            Comparator.comparingInt(Song::getDuration).thenComparing(Song::getName).thenComparing(Song::getArtist);
+
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    private SongIndex index;
+    private boolean snapshot;
+    private SongPool pool;
+    private boolean copyAdded;
+    private PlaylistQuery settings;
 
     /**
      * Constructs an empty playlist.
      */
     public Playlist() {
-        playlist = new ArrayList<>();
-        scanningOrder = ScanningOrder.ADDING;
-        filterArtist = null;
-        filterGenre = null;
-        filterDuration = Integer.MAX_VALUE;
+        this(null);
+    }
+
+    /**
+     * Constructs an empty playlist that stores the canonical songs of the given pool.
+     * Songs are shared with every other playlist using the pool, so changing the duration of a song changes it
+     * in all of them, and clones of the playlist share its songs instead of copying them.
+     *
+     * @param pool the pool of canonical songs, or null to store the added songs themselves
+     */
+    public Playlist(SongPool pool) {
+        this.pool = pool;
+        index = new SongIndex();
+        snapshot = false;
+        settings = new PlaylistQuery(null);
     }
 
     /**
      * Adds a song to the playlist.
+     * A playlist using a {@link SongPool} stores the canonical song equal to the given one.
      *
      * @param song the song to add
      * @throws SongAlreadyExistsException if the song already exists in the playlist
      */
     public void addSong(Song song) throws SongAlreadyExistsException {
-        if (playlist.contains(song))
+        if (index.contains(song) || !ownIndex().add(stored(song)))
             throw new SongAlreadyExistsException("This song is already in the playlist");
-        playlist.add(song);
     }
 
     /**
@@ -45,11 +81,186 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
      * @return true if the song was removed, false otherwise
      */
     public boolean removeSong(Song song) {
-        return playlist.remove(song);
+        if (!index.contains(song))
+            return false;
+        return ownIndex().remove(song);
     }
 
     /**
-     * Creates a shallow clone of the playlist.
+     * Adds songs to the playlist in one pass, skipping the songs already in it instead of throwing.
+     * A song equal to one added earlier in the same call is skipped as well.
+     *
+     * @param songs the songs to add
+     * @return the skipped songs, in the order they were given
+     */
+    public List<Song> addAll(Iterable<? extends Song> songs) {
+        ArrayList<Song> rejected = new ArrayList<>();
+        SongIndex own = null;
+        for (Song song : songs) {
+            if (index.contains(song)) {
+                rejected.add(song);
+                continue;
+            }
+            if (own == null)
+                own = ownIndex();
+            own.add(stored(song));
+        }
+        return rejected;
+    }
+
+    /**
+     * Returns the song to store for an added song: the canonical song of the pool, or the song itself.
+     * A playlist copying its added songs stores a clone of the song, or the canonical song of the clone.
+     *
+     * @param song the added song
+     * @return the song to store
+     */
+    private Song stored(Song song) {
+        Song added = copyAdded ? song.clone() : song;
+        return pool == null ? added : pool.canonical(added);
+    }
+
+    /**
+     * Sets whether the playlist and its clones store copies of the added songs instead of the songs
+     * themselves, so the caller keeps no reference to a stored song it could change.
+     *
+     * @param copy true to store copies of the added songs
+     */
+    void copyAddedSongs(boolean copy) {
+        copyAdded = copy;
+    }
+
+    /**
+     * Removes the songs equal to any of the given ones.
+     * Emptied slots are compacted once at the end rather than after every removal.
+     *
+     * @param songs the songs to remove
+     * @return the number of removed songs
+     */
+    public int removeAll(Collection<? extends Song> songs) {
+        for (Song song : songs) {
+            if (index.contains(song))
+                return ownIndex().removeAll(songs);
+        }
+        return 0;
+    }
+
+    /**
+     * Removes the songs passing a filter in one pass over the playlist.
+     * Emptied slots are compacted once at the end rather than after every removal. A playlist sharing its
+     * songs first looks for a matching song, so it only copies them when something is removed; the songs
+     * before the first match are then tested twice.
+     *
+     * @param filter the filter selecting the songs to remove
+     * @return the number of removed songs
+     */
+    public int removeIf(Predicate<? super Song> filter) {
+        if ((snapshot || index.isShared()) && !index.anyMatch(filter))
+            return 0;
+        return ownIndex().removeIf(filter);
+    }
+
+    /**
+     * Checks if the playlist contains a song equal to the given one.
+     *
+     * @param song the song to look for
+     * @return true if an equal song is in the playlist, false otherwise
+     */
+    public boolean containsSong(Song song) {
+        return index.contains(song);
+    }
+
+    /**
+     * Returns the song in the playlist that is equal to the given one.
+     *
+     * @param song the song to look for
+     * @return the stored song, or null if the playlist has no equal song
+     */
+    public Song getSong(Song song) {
+        return index.get(song);
+    }
+
+    /**
+     * Returns the number of songs in the playlist.
+     *
+     * @return the number of songs in the playlist
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the index of this playlist, first taking a copy of an index shared with other playlists.
+     * Used before the songs are changed. A snapshot copies the songs themselves unless it uses a pool; the
+     * playlist it was cloned from keeps its songs and leaves the shared index to its snapshots.
+     *
+     * @return the index owned by this playlist
+     */
+    SongIndex ownIndex() {
+        if (snapshot) {
+            SongIndex shared = index;
+            shared.removeSnapshot(this);
+            detachSnapshot(shared);
+        } else if (index.isShared()) {
+            index = index.copy(false);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of this playlist, which may be shared with its snapshots or with the playlist it was
+     * cloned from. Used by reads, which never copy the songs.
+     *
+     * @return the index of this playlist
+     */
+    SongIndex sharedIndex() {
+        return index;
+    }
+
+    /**
+     * Gives this snapshot its own copy of the songs of the index it shares.
+     * Called by the shared index before its songs change.
+     *
+     * @param shared the index shared with the playlist this snapshot was cloned from
+     */
+    void detachSnapshot(SongIndex shared) {
+        if (snapshot && index == shared) {
+            index = shared.copy(pool == null);
+            snapshot = false;
+        }
+    }
+
+    /**
+     * Creates a clone of the playlist that owns a copy of the songs right away instead of sharing them.
+     *
+     * @return a cloned playlist independent of this one
+     */
+    Playlist detachedClone() {
+        Playlist copy = clone();
+        copy.ownIndex();
+        return copy;
+    }
+
+    /**
+     * Stops tracking this playlist as a snapshot, so it shares the index it was cloned from for good.
+     * Only safe when neither playlist changes its songs again, as for the published versions of a
+     * {@link ConcurrentPlaylist}, which are never changed once readers can see them.
+     */
+    void freeze() {
+        if (snapshot) {
+            index.removeSnapshot(this);
+            snapshot = false;
+        }
+    }
+
+    /**
+     * Creates a clone of the playlist with copies of its songs.
+     * The clone is a snapshot sharing the songs of this playlist in O(1), and reads never copy them. The first
+     * of the two playlists to add or remove songs takes an O(n) copy of the index, the clone copying the songs
+     * too. Changing the duration of a shared song changes it in this playlist and first gives the clone copies
+     * with the old duration, so songs read from the clone belong to this playlist until the clone copies them.
+     * Open iterations go on over the songs they started with, and fail fast once those change.
+     * A playlist using a {@link SongPool} never copies its songs, its clones keep sharing the canonical songs.
      *
      * @return a cloned playlist object
      */
@@ -57,10 +268,8 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
     public Playlist clone() {
         try {
             Playlist copyPlaylist = (Playlist) super.clone();
-            copyPlaylist.playlist = (ArrayList<Song>) playlist.clone();
-            for (int i = 0; i < playlist.size(); i++) {
-                copyPlaylist.playlist.set(i, playlist.get(i).clone());
-            }
+            copyPlaylist.snapshot = true;
+            index.addSnapshot(copyPlaylist);
             return copyPlaylist;
         } catch (CloneNotSupportedException e) {
             return null;
@@ -69,6 +278,8 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
 
     /**
      * Checks if the playlist is equal to another object.
+     * Playlists are equal when they hold equal songs, in any order. Playlists of different sizes or hash codes
+     * are told apart in O(1).
      *
      * @param other the object to compare
      * @return true if the playlist is equal to the other object, false otherwise
@@ -80,23 +291,18 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
         if (other == null || getClass() != other.getClass())
             return false;
         Playlist otherPlaylist = (Playlist) other;
-        Set<Song> thisSongs = new HashSet<>(playlist);
-        Set<Song> otherSongs = new HashSet<>(otherPlaylist.playlist);
-        return thisSongs.equals(otherSongs);
+        return index.hasSameSongs(otherPlaylist.index);
     }
 
     /**
      * Computes the hash code for the playlist.
+     * The hash code is the sum of the hash codes of the songs, maintained as songs are added and removed.
      *
      * @return the hash code value for the playlist
      */
     @Override
     public int hashCode() {
-        int hashValue = 0;
-        for (Song song : playlist) {
-            hashValue += song.hashCode();
-        }
-        return hashValue;
+        return index.hashSum();
     }
 
     /**
@@ -106,33 +312,68 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
      */
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (Song song : playlist) {
-            sb.append("(").append(song).append("), ");
-        }
-        if (!playlist.isEmpty()) {
-            sb.setLength(sb.length() - 2);
+        StringBuilder sb = new StringBuilder(2 + index.size() * 40);
+        try {
+            writeTo(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return "[" + sb + "]";
+        return sb.toString();
     }
 
     /**
-     * Applies the set filters to the playlist and returns the filtered songs.
+     * Writes the string representation of the playlist to the given output.
+     * The output is the same as {@link #toString()}, but the songs are rendered into a bounded chunk that is
+     * handed to the output whenever it fills, so the whole string is never built in memory.
      *
-     * @return the filtered songs based on the applied filters
+     * @param out the output to write to
+     * @throws IOException if the output fails
      */
-    private ArrayList<Song> applyFilter() {
-        ArrayList<Song> filteredSongs = new ArrayList<>();
-        for (Song song : playlist) {
-            if (filterArtist == null || filterArtist.equals(song.getArtist())) {
-                if (filterGenre == null || filterGenre.equals(song.getGenre())) {
-                    if (song.getDuration() <= filterDuration) {
-                        filteredSongs.add(song);
-                    }
-                }
+    public void writeTo(Appendable out) throws IOException {
+        StringBuilder chunk = out instanceof StringBuilder ? (StringBuilder) out : new StringBuilder(2 * WRITE_CHUNK_SIZE);
+        chunk.append('[');
+        boolean first = true;
+        for (Song song : index.inAddingOrder()) {
+            if (song == null)
+                continue;
+            if (!first)
+                chunk.append(", ");
+            chunk.append('(');
+            song.writeTo(chunk);
+            chunk.append(')');
+            first = false;
+            if (chunk != out && chunk.length() >= WRITE_CHUNK_SIZE) {
+                out.append(chunk);
+                chunk.setLength(0);
             }
         }
-        return filteredSongs;
+        chunk.append(']');
+        if (chunk != out)
+            out.append(chunk);
+    }
+
+    /**
+     * Writes the string representation of the playlist to the given writer in chunks.
+     * The writer is flushed but not closed.
+     *
+     * @param writer the writer to write to
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writeTo((Appendable) writer);
+        writer.flush();
+    }
+
+    /**
+     * Saves the songs of the playlist in a compact binary file, together with its scanning order and filters.
+     * The file can be opened again with {@link PlaylistFile#open(Path)}.
+     *
+     * @param path the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void saveTo(Path path) throws IOException {
+        PlaylistFile.write(path, index.inAddingOrder(), settings.getOrder(), settings.getArtist(),
+                settings.getGenre(), settings.getMaxDuration(), settings.getExpression());
     }
 
     /**
@@ -142,7 +383,7 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
      */
     @Override
     public void filterArtist(String artist) {
-        filterArtist = artist;
+        settings = settings.artist(artist);
     }
 
     /**
@@ -152,7 +393,7 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
      */
     @Override
     public void filterGenre(Song.Genre genre) {
-        filterGenre = genre;
+        settings = settings.genre(genre);
     }
 
     /**
@@ -162,7 +403,27 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
      */
     @Override
     public void filterDuration(int duration) {
-        filterDuration = duration;
+        settings = settings.maxDuration(duration);
+    }
+
+    /**
+     * Filters the playlist by a filter expression, in addition to the artist, genre and duration filters.
+     * Those filters are shorthands for the matching clauses of the expression, combined with it by a
+     * conjunction; they still choose the artist, genre and duration indexes to scan.
+     *
+     * @param filter the filter expression, or {@link SongFilter#all()} to remove it
+     */
+    public void filter(SongFilter filter) {
+        settings = settings.filter(filter);
+    }
+
+    /**
+     * Returns the filter expression combining the artist, genre and duration filters with the set expression.
+     *
+     * @return the combined filter of the playlist
+     */
+    public SongFilter getFilter() {
+        return settings.getFilter();
     }
 
     /**
@@ -172,7 +433,7 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
      */
     @Override
     public void setScanningOrder(ScanningOrder order) {
-        scanningOrder = order;
+        settings = settings.order(order);
     }
 
     /**
@@ -185,29 +446,154 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
         return new PlaylistIterator();
     }
 
+    /**
+     * Returns an iterator over one page of the songs passing the set filters, in the scanning order.
+     *
+     * @param offset the number of matching songs to skip
+     * @param limit  the maximum number of songs to return
+     * @return an iterator over the songs of the page
+     * @throws IllegalArgumentException if the offset or the limit is negative
+     * @see #page(int, int)
+     */
+    public Iterator<Song> iterator(int offset, int limit) {
+        return page(offset, limit).iterator();
+    }
+
+    /**
+     * Returns one page of the songs passing the set filters, in the scanning order.
+     * A page of a sorted order selected from few artist or genre postings costs O(n log k) for the
+     * offset + limit = k first songs, instead of sorting all of them.
+     *
+     * @param offset the number of matching songs to skip
+     * @param limit  the maximum number of songs to return
+     * @return the songs of the page, unmodifiable
+     * @throws IllegalArgumentException if the offset or the limit is negative
+     */
+    public List<Song> page(int offset, int limit) {
+        return settings.page(index, offset, limit);
+    }
+
+    /**
+     * Returns the total duration of the songs passing the set filters.
+     *
+     * @return the total duration in seconds
+     * @see PlaylistQuery#totalDuration()
+     */
+    public long totalDuration() {
+        return settings.totalDuration(index);
+    }
+
+    /**
+     * Returns the total duration of the songs passing the set filters, per genre.
+     *
+     * @return the total duration in seconds of every genre with matching songs
+     * @see PlaylistQuery#durationByGenre()
+     */
+    public Map<Song.Genre, Long> durationByGenre() {
+        return settings.durationByGenre(index);
+    }
+
+    /**
+     * Returns the number of songs in the longest prefix of the scanning order that fits in a total duration.
+     *
+     * @param seconds the total duration the songs must fit in
+     * @return the number of songs that fit
+     * @see PlaylistQuery#countFitting(int)
+     */
+    public int countFitting(int seconds) {
+        return settings.countFitting(index, seconds);
+    }
+
+    /**
+     * Returns the longest prefix of the scanning order that fits in a total duration.
+     *
+     * @param seconds the total duration the songs must fit in
+     * @return the songs that fit, unmodifiable
+     * @see PlaylistQuery#countFitting(int)
+     */
+    public List<Song> fitting(int seconds) {
+        return page(0, countFitting(seconds));
+    }
+
+    /**
+     * Returns an iterator over the songs passing the set filters in a random order, ignoring the scanning order.
+     *
+     * @return an iterator over the playlist in random order
+     * @see PlaylistQuery#shuffled(long, boolean)
+     */
+    public Iterator<Song> shuffled() {
+        return settings.shuffled(this, new SplittableRandom(), false);
+    }
+
+    /**
+     * Returns an iterator over the songs passing the set filters in a random order given by a seed, ignoring
+     * the scanning order. The same seed gives the same order for the same playlist.
+     *
+     * @param seed          the seed of the shuffle
+     * @param spreadArtists true to avoid consecutive songs by the same artist
+     * @return an iterator over the playlist in random order
+     * @see PlaylistQuery#shuffled(long, boolean)
+     */
+    public Iterator<Song> shuffled(long seed, boolean spreadArtists) {
+        return settings.shuffled(this, new SplittableRandom(seed), spreadArtists);
+    }
+
+    /**
+     * Returns a spliterator over the songs passing the set filters, in the scanning order.
+     * Scans in adding order split over the slots of the playlist; sorted scans split their order index.
+     *
+     * @return a spliterator over the playlist
+     */
+    @Override
+    public Spliterator<Song> spliterator() {
+        return settings.scan(this);
+    }
+
+    /**
+     * Returns a query passing every song of the playlist in adding order, to be refined with filters and an
+     * order of its own. Queries are immutable and don't depend on the filters and scanning order set on the
+     * playlist, so several of them can scan the playlist at once.
+     *
+     * @return a query over the playlist
+     */
+    public PlaylistQuery query() {
+        return new PlaylistQuery(this);
+    }
+
+    /**
+     * Returns a sequential stream of the songs passing the set filters, in the scanning order.
+     *
+     * @return a stream over the playlist
+     */
+    public Stream<Song> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream of the songs passing the set filters, in the scanning order.
+     *
+     * @return a parallel stream over the playlist
+     */
+    public Stream<Song> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     /**
      * Iterator class for iterating over the playlist.
+     * Songs are filtered on demand while iterating, so stopping early does not pay for the whole playlist.
+     * The filters and scanning order are fixed when the iterator is created, but the songs are read
+     * from the playlist itself. Removing the song returned last is allowed while iterating; any other change
+     * to the playlist makes the iterator throw a {@link java.util.ConcurrentModificationException}.
      */
     public class PlaylistIterator implements Iterator<Song> {
-        private ArrayList<Song> sortedSongs;
-        private int index;
+        private final Iterator<Song> source;
 
         /**
          * Constructs a new PlaylistIterator.
-         * Applies the filters and sorting order to the playlist.
+         * Chooses the songs to scan for the filters and sorting order of the playlist.
          */
         public PlaylistIterator() {
-            sortedSongs = applyFilter();
-            switch (scanningOrder) {
-                case ADDING:
-                    break;
-                case NAME:
-                    sortedSongs.sort(Comparator.comparing(Song::getName).thenComparing(Song::getArtist));
-                    break;
-                case DURATION:
-                    sortedSongs.sort(Comparator.comparing(Song::getDuration).thenComparing(Song::getName).thenComparing(Song::getArtist));
-                    break;
-            }
+            source = Spliterators.iterator(spliterator());
         }
 
         /**
@@ -217,17 +603,18 @@ public class Playlist implements Cloneable, Iterable<Song>, FilteredSongIterable
          */
         @Override
         public boolean hasNext() {
-            return index < sortedSongs.size();
+            return source.hasNext();
         }
 
         /**
          * Returns the next song in the iteration.
          *
          * @return the next song
+         * @throws NoSuchElementException if there are no more songs
          */
         @Override
         public Song next() {
-            return sortedSongs.get(index++);
+            return source.next();
         }
     }
 }
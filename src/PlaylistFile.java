@@ -0,0 +1,482 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+
+/**
+ * A playlist saved in a compact binary file, read through a memory mapping.
+ * Opening a file only reads its header; the songs are decoded one at a time when they are asked for.
+ * <p>
+ * The file is big-endian and laid out as follows:
+ * <pre>
+ * header:   int magic, short version, byte scanning order, byte filter genre (-1 for none),
+ *           int filter duration, string filter artist (length -1 for none),
+ *           int byte length and bytes of the filter expression, int song count
+ * names:    string table of the distinct song names
+ * artists:  string table of the distinct artists
+ * columns:  int[count] name ids, int[count] artist ids, int[count] durations, byte[count] genres (-1 for none)
+ * </pre>
+ * A string is an int byte length followed by its UTF-8 bytes. A string table is an int string count, the int
+ * offsets of the strings in its data followed by the length of the data, and then the data itself.
+ * Songs are stored in adding order. The filter expression is written by {@link SongFilter}; files of version 1,
+ * which have no expression, are still read and pass every song.
+ */
+public class PlaylistFile implements Iterable<Song> {
+    private static final int MAGIC = 0x48573350;
+    private static final short VERSION = 2;
+    private static final short VERSION_WITHOUT_EXPRESSION = 1;
+    private static final byte NO_GENRE = -1;
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 1 + 4 + 4;
+
+    private final MappedByteBuffer data;
+    private final ScanningOrder scanningOrder;
+    private final Song.Genre filterGenre;
+    private final int filterDuration;
+    private final String filterArtist;
+    private final SongFilter filterExpression;
+    private final int size;
+    private final StringTable names;
+    private final StringTable artists;
+    private final int nameIdsStart;
+    private final int artistIdsStart;
+    private final int durationsStart;
+    private final int genresStart;
+
+    /**
+     * Reads the header of a mapped playlist file and locates its sections.
+     *
+     * @param data the mapped file
+     * @throws IOException if the file is not a playlist file of a supported version, or is truncated or corrupt
+     */
+    private PlaylistFile(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+            throw new IOException("Not a playlist file");
+        short version = data.getShort(4);
+        if (version != VERSION && version != VERSION_WITHOUT_EXPRESSION)
+            throw new IOException("Unsupported playlist file version " + version);
+        int order = data.get(6);
+        if (order < 0 || order >= ScanningOrder.values().length)
+            throw new IOException("Invalid scanning order " + order);
+        scanningOrder = ScanningOrder.values()[order];
+        if (!isGenre(data.get(7)))
+            throw new IOException("Invalid genre filter " + data.get(7));
+        filterGenre = genreOf(data.get(7));
+        filterDuration = data.getInt(8);
+        int artistLength = data.getInt(12);
+        int position = 16;
+        if (artistLength < 0) {
+            filterArtist = null;
+        } else {
+            checkBounds(position, artistLength);
+            filterArtist = decode(position, artistLength);
+            position += artistLength;
+        }
+        if (version == VERSION_WITHOUT_EXPRESSION) {
+            filterExpression = SongFilter.all();
+        } else {
+            checkBounds(position, 4);
+            int expressionLength = data.getInt(position);
+            position += 4;
+            checkBounds(position, expressionLength);
+            filterExpression = readExpression(position, expressionLength);
+            position += expressionLength;
+        }
+        checkBounds(position, 4);
+        size = data.getInt(position);
+        position += 4;
+        names = new StringTable(position);
+        artists = new StringTable(names.end);
+        nameIdsStart = artists.end;
+        artistIdsStart = nameIdsStart + 4 * size;
+        durationsStart = artistIdsStart + 4 * size;
+        genresStart = durationsStart + 4 * size;
+        checkBounds(nameIdsStart, 13L * size);
+        checkSongs();
+    }
+
+    /**
+     * Checks that every saved song refers to strings of the tables and to a genre,
+     * so that decoding a song can't fail on a corrupt file.
+     *
+     * @throws IOException if a song holds an invalid string id or genre
+     */
+    private void checkSongs() throws IOException {
+        for (int i = 0; i < size; i++) {
+            int name = data.getInt(nameIdsStart + 4 * i);
+            if (name < 0 || name >= names.size)
+                throw new IOException("Invalid name id " + name + " of song " + i);
+            int artist = data.getInt(artistIdsStart + 4 * i);
+            if (artist < 0 || artist >= artists.size)
+                throw new IOException("Invalid artist id " + artist + " of song " + i);
+            if (!isGenre(data.get(genresStart + i)))
+                throw new IOException("Invalid genre " + data.get(genresStart + i) + " of song " + i);
+        }
+    }
+
+    /**
+     * Reads the filter expression stored in the header.
+     *
+     * @param position the position of the expression
+     * @param length   the number of bytes of the expression
+     * @return the filter expression
+     * @throws IOException if the bytes hold no valid expression
+     */
+    private SongFilter readExpression(int position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer expression = data.duplicate();
+        expression.position(position);
+        expression.get(bytes);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            SongFilter filter = SongFilter.read(in);
+            if (in.available() != 0)
+                throw new IOException("Invalid filter expression");
+            return filter;
+        } catch (EOFException e) {
+            throw new IOException("Truncated filter expression", e);
+        }
+    }
+
+    /**
+     * Saves the songs of a playlist in adding order, together with its scanning order and filters.
+     *
+     * @param path             the file to write
+     * @param songs            the songs in adding order, where null entries are skipped
+     * @param scanningOrder    the scanning order of the playlist
+     * @param filterArtist     the artist filter, or null for none
+     * @param filterGenre      the genre filter, or null for none
+     * @param filterDuration   the maximum duration filter
+     * @param filterExpression the filter expression
+     * @throws IOException if the file can't be written
+     */
+    static void write(Path path, Iterable<Song> songs, ScanningOrder scanningOrder, String filterArtist,
+                      Song.Genre filterGenre, int filterDuration, SongFilter filterExpression) throws IOException {
+        LinkedHashMap<String, Integer> names = new LinkedHashMap<>();
+        LinkedHashMap<String, Integer> artists = new LinkedHashMap<>();
+        ArrayList<Song> saved = new ArrayList<>();
+        ByteArrayOutputStream expression = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(expression)) {
+            filterExpression.write(out);
+        }
+        for (Song song : songs) {
+            if (song == null)
+                continue;
+            names.putIfAbsent(song.getName(), names.size());
+            artists.putIfAbsent(song.getArtist(), artists.size());
+            saved.add(song);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(scanningOrder.ordinal());
+            out.writeByte(filterGenre == null ? NO_GENRE : filterGenre.ordinal());
+            out.writeInt(filterDuration);
+            if (filterArtist == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = filterArtist.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(expression.size());
+            expression.writeTo(out);
+            out.writeInt(saved.size());
+            writeStringTable(out, names.keySet());
+            writeStringTable(out, artists.keySet());
+            for (Song song : saved) {
+                out.writeInt(names.get(song.getName()));
+            }
+            for (Song song : saved) {
+                out.writeInt(artists.get(song.getArtist()));
+            }
+            for (Song song : saved) {
+                out.writeInt(song.getDuration());
+            }
+            for (Song song : saved) {
+                out.writeByte(song.getGenre() == null ? NO_GENRE : song.getGenre().ordinal());
+            }
+        }
+    }
+
+    /**
+     * Writes a string table holding the given strings in order.
+     *
+     * @param out     the output to write to
+     * @param strings the strings of the table
+     * @throws IOException if the output fails
+     */
+    private static void writeStringTable(DataOutputStream out, Iterable<String> strings) throws IOException {
+        ArrayList<byte[]> encoded = new ArrayList<>();
+        for (String string : strings) {
+            encoded.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeInt(encoded.size());
+        int offset = 0;
+        for (byte[] bytes : encoded) {
+            out.writeInt(offset);
+            offset += bytes.length;
+        }
+        out.writeInt(offset);
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Opens a saved playlist by mapping its file into memory.
+     * The songs are checked but only decoded when used; the file must not be changed while it is open.
+     *
+     * @param path the file to open
+     * @return the saved playlist
+     * @throws IOException if the file can't be read, or is not a valid playlist file
+     */
+    public static PlaylistFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Playlist file is too large to map");
+            return new PlaylistFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns the number of saved songs.
+     *
+     * @return the number of saved songs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Decodes a saved song. Every call returns a new song.
+     *
+     * @param position the position of the song in adding order
+     * @return the song
+     * @throws IndexOutOfBoundsException if the position is out of range
+     */
+    public Song getSong(int position) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("Position " + position + " out of bounds for size " + size);
+        String name = names.get(data.getInt(nameIdsStart + 4 * position));
+        String artist = artists.get(data.getInt(artistIdsStart + 4 * position));
+        Song.Genre genre = genreOf(data.get(genresStart + position));
+        return new Song(name, artist, genre, data.getInt(durationsStart + 4 * position));
+    }
+
+    /**
+     * Returns the saved scanning order.
+     *
+     * @return the scanning order of the saved playlist
+     */
+    public ScanningOrder getScanningOrder() {
+        return scanningOrder;
+    }
+
+    /**
+     * Returns the saved artist filter.
+     *
+     * @return the artist filter, or null if none was set
+     */
+    public String getFilterArtist() {
+        return filterArtist;
+    }
+
+    /**
+     * Returns the saved genre filter.
+     *
+     * @return the genre filter, or null if none was set
+     */
+    public Song.Genre getFilterGenre() {
+        return filterGenre;
+    }
+
+    /**
+     * Returns the saved maximum duration filter.
+     *
+     * @return the maximum duration filter
+     */
+    public int getFilterDuration() {
+        return filterDuration;
+    }
+
+    /**
+     * Returns the saved filter expression.
+     *
+     * @return the filter expression, {@link SongFilter#all()} if none was set
+     */
+    public SongFilter getFilterExpression() {
+        return filterExpression;
+    }
+
+    /**
+     * Builds a playlist holding the saved songs, with the saved scanning order and filters.
+     *
+     * @return the loaded playlist
+     */
+    public Playlist toPlaylist() {
+        return toPlaylist(null);
+    }
+
+    /**
+     * Builds a playlist holding the saved songs, with the saved scanning order and filters.
+     *
+     * @param pool the pool of canonical songs the playlist stores, or null to store new songs
+     * @return the loaded playlist
+     */
+    public Playlist toPlaylist(SongPool pool) {
+        Playlist playlist = new Playlist(pool);
+        for (int i = 0; i < size; i++) {
+            playlist.addSong(getSong(i));
+        }
+        playlist.setScanningOrder(scanningOrder);
+        playlist.filterArtist(filterArtist);
+        playlist.filterGenre(filterGenre);
+        playlist.filterDuration(filterDuration);
+        playlist.filter(filterExpression);
+        return playlist;
+    }
+
+    /**
+     * Returns an iterator decoding the saved songs in adding order, ignoring the saved filters.
+     *
+     * @return an iterator over the saved songs
+     */
+    @Override
+    public Iterator<Song> iterator() {
+        return new Iterator<Song>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public Song next() {
+                if (position >= size)
+                    throw new NoSuchElementException();
+                return getSong(position++);
+            }
+        };
+    }
+
+    /**
+     * Checks whether the given ordinal is a stored genre.
+     *
+     * @param ordinal the stored ordinal
+     * @return true if the ordinal is a genre or {@link #NO_GENRE}
+     */
+    private static boolean isGenre(byte ordinal) {
+        return ordinal >= NO_GENRE && ordinal < Song.Genre.values().length;
+    }
+
+    /**
+     * Returns the genre stored as the given ordinal.
+     *
+     * @param ordinal the stored ordinal
+     * @return the genre, or null for {@link #NO_GENRE}
+     * @throws IllegalStateException if the ordinal is not a genre
+     */
+    private static Song.Genre genreOf(byte ordinal) {
+        if (ordinal == NO_GENRE)
+            return null;
+        Song.Genre[] genres = Song.Genre.values();
+        if (ordinal < 0 || ordinal >= genres.length)
+            throw new IllegalStateException("Invalid genre " + ordinal);
+        return genres[ordinal];
+    }
+
+    /**
+     * Checks that a section of the given length starting at the given position lies within the file.
+     *
+     * @param position the start of the section
+     * @param length   the length of the section
+     * @throws IOException if the section goes past the end of the file
+     */
+    private void checkBounds(long position, long length) throws IOException {
+        if (length < 0 || position + length > data.limit())
+            throw new IOException("Truncated playlist file");
+    }
+
+    /**
+     * Decodes a UTF-8 string stored in the file.
+     *
+     * @param position the position of the first byte
+     * @param length   the number of bytes
+     * @return the decoded string
+     */
+    private String decode(int position, int length) {
+        ByteBuffer bytes = data.duplicate();
+        bytes.position(position).limit(position + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * A table of strings referenced by id, decoded the first time each of them is used.
+     */
+    private class StringTable {
+        private final int offsetsStart;
+        private final int dataStart;
+        private final int end;
+        private final int size;
+        private final String[] decoded;
+
+        /**
+         * Locates the string table starting at the given position.
+         *
+         * @param start the position of the table
+         * @throws IOException if the table goes past the end of the file, or its offsets are invalid
+         */
+        StringTable(int start) throws IOException {
+            checkBounds(start, 4);
+            size = data.getInt(start);
+            if (size < 0)
+                throw new IOException("Invalid string table size " + size);
+            offsetsStart = start + 4;
+            checkBounds(offsetsStart, 4L * size + 4);
+            dataStart = offsetsStart + 4 * size + 4;
+            int length = data.getInt(offsetsStart + 4 * size);
+            checkBounds(dataStart, length);
+            end = dataStart + length;
+            int previous = 0;
+            for (int id = 0; id < size; id++) {
+                int offset = data.getInt(offsetsStart + 4 * id);
+                if (offset < previous || offset > length)
+                    throw new IOException("Invalid string table offset " + offset);
+                previous = offset;
+            }
+            decoded = new String[size];
+        }
+
+        /**
+         * Returns the string with the given id.
+         *
+         * @param id the id of the string
+         * @return the string
+         */
+        String get(int id) {
+            String string = decoded[id];
+            if (string == null) {
+                int offset = data.getInt(offsetsStart + 4 * id);
+                int length = data.getInt(offsetsStart + 4 * id + 4) - offset;
+                string = decode(dataStart + offset, length);
+                decoded[id] = string;
+            }
+            return string;
+        }
+    }
+}
@@ -0,0 +1,1085 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.EnumMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An immutable query over a playlist: the filters its songs must pass and the order to scan them in.
+ * Every method refining a query returns a new query and leaves the original unchanged, so several queries
+ * with different filters can scan the same playlist at once without copying it or changing its state:
+ * <pre>
+ * for (Song song : playlist.query().artist("Adele").maxDuration(240).order(ScanningOrder.NAME)) { ... }
+ * </pre>
+ * A query reads the live playlist every time it is iterated and scans the indexes of the playlist. It keeps
+ * its compiled filter, and the sorted candidates it had to build, for as long as the songs don't change, so
+ * iterating the same query again doesn't filter or sort again.
+ */
+public final class PlaylistQuery implements Iterable<Song> {
+    private final Playlist playlist;
+    private final String artist;
+    private final Song.Genre genre;
+    private final int maxDuration;
+    private final SongFilter filter;
+    private final ScanningOrder order;
+    private Predicate<Song> compiledFilter;
+    private CachedCandidates cachedCandidates;
+
+    /**
+     * Constructs a query passing every song of a playlist in adding order.
+     *
+     * @param playlist the playlist to query, or null for the filters and order a playlist keeps for itself,
+     *                 which it scans with {@link #scan(Playlist)}
+     */
+    PlaylistQuery(Playlist playlist) {
+        this(playlist, null, null, Integer.MAX_VALUE, SongFilter.all(), ScanningOrder.ADDING);
+    }
+
+    /**
+     * Constructs a query with the given settings.
+     *
+     * @param playlist    the playlist to query
+     * @param artist      the artist to filter by, or null for any artist
+     * @param genre       the genre to filter by, or null for any genre
+     * @param maxDuration the maximum duration to filter by
+     * @param filter      the filter expression the songs must also pass
+     * @param order       the scanning order
+     */
+    private PlaylistQuery(Playlist playlist, String artist, Song.Genre genre, int maxDuration, SongFilter filter,
+                          ScanningOrder order) {
+        this.playlist = playlist;
+        this.artist = artist;
+        this.genre = genre;
+        this.maxDuration = maxDuration;
+        this.filter = filter;
+        this.order = order;
+    }
+
+    /**
+     * Returns a query that only passes the songs of an artist.
+     *
+     * @param artist the artist to filter by, or null for any artist
+     * @return the refined query
+     */
+    public PlaylistQuery artist(String artist) {
+        return new PlaylistQuery(playlist, artist, genre, maxDuration, filter, order);
+    }
+
+    /**
+     * Returns a query that only passes the songs of a genre.
+     *
+     * @param genre the genre to filter by, or null for any genre
+     * @return the refined query
+     */
+    public PlaylistQuery genre(Song.Genre genre) {
+        return new PlaylistQuery(playlist, artist, genre, maxDuration, filter, order);
+    }
+
+    /**
+     * Returns a query that only passes the songs not longer than a duration.
+     *
+     * @param maxDuration the maximum duration to filter by, or {@link Integer#MAX_VALUE} for any duration
+     * @return the refined query
+     */
+    public PlaylistQuery maxDuration(int maxDuration) {
+        return new PlaylistQuery(playlist, artist, genre, maxDuration, filter, order);
+    }
+
+    /**
+     * Returns a query that also requires the songs to pass a filter expression.
+     *
+     * @param filter the filter expression, or {@link SongFilter#all()} to remove it
+     * @return the refined query
+     */
+    public PlaylistQuery filter(SongFilter filter) {
+        return new PlaylistQuery(playlist, artist, genre, maxDuration, filter, order);
+    }
+
+    /**
+     * Returns a query that scans the songs in the given order.
+     *
+     * @param order the scanning order
+     * @return the refined query
+     */
+    public PlaylistQuery order(ScanningOrder order) {
+        return new PlaylistQuery(playlist, artist, genre, maxDuration, filter, order);
+    }
+
+    /**
+     * Returns the artist the query filters by.
+     *
+     * @return the artist, or null for any artist
+     */
+    public String getArtist() {
+        return artist;
+    }
+
+    /**
+     * Returns the genre the query filters by.
+     *
+     * @return the genre, or null for any genre
+     */
+    public Song.Genre getGenre() {
+        return genre;
+    }
+
+    /**
+     * Returns the maximum duration the query filters by.
+     *
+     * @return the maximum duration
+     */
+    public int getMaxDuration() {
+        return maxDuration;
+    }
+
+    /**
+     * Returns the filter expression set with {@link #filter(SongFilter)}, without the other filters.
+     *
+     * @return the filter expression
+     */
+    SongFilter getExpression() {
+        return filter;
+    }
+
+    /**
+     * Returns the scanning order of the query.
+     *
+     * @return the scanning order
+     */
+    public ScanningOrder getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the filter expression combining the artist, genre and duration filters with the set expression.
+     *
+     * @return the combined filter of the query
+     */
+    public SongFilter getFilter() {
+        SongFilter combined = filter;
+        if (artist != null)
+            combined = SongFilter.artist(artist).and(combined);
+        if (genre != null)
+            combined = SongFilter.genre(genre).and(combined);
+        return SongFilter.maxDuration(maxDuration).and(combined);
+    }
+
+    /**
+     * Returns an iterator over the songs of the playlist passing the filters, in the scanning order.
+     * The iterator fails fast with a {@link java.util.ConcurrentModificationException} once the playlist is
+     * modified while iterating, except for removing the song it returned last.
+     *
+     * @return an iterator over the matching songs
+     */
+    @Override
+    public Iterator<Song> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * Returns a spliterator over the songs of the playlist passing the filters, in the scanning order.
+     *
+     * @return a spliterator over the matching songs
+     */
+    @Override
+    public Spliterator<Song> spliterator() {
+        return scan(playlist);
+    }
+
+    /**
+     * Returns an iterator over one page of the songs of the playlist passing the filters, in the scanning order.
+     *
+     * @param offset the number of matching songs to skip
+     * @param limit  the maximum number of songs to return
+     * @return an iterator over the songs of the page
+     * @throws IllegalArgumentException if the offset or the limit is negative
+     * @see #page(int, int)
+     */
+    public Iterator<Song> iterator(int offset, int limit) {
+        return page(offset, limit).iterator();
+    }
+
+    /**
+     * Returns one page of the songs of the playlist passing the filters, in the scanning order.
+     * When the artist or genre postings are few, a sorted page keeps only its first offset + limit songs in a
+     * bounded heap instead of sorting every candidate, so it costs O(n log k) rather than O(n log n).
+     *
+     * @param offset the number of matching songs to skip
+     * @param limit  the maximum number of songs to return
+     * @return the songs of the page, unmodifiable
+     * @throws IllegalArgumentException if the offset or the limit is negative
+     */
+    public List<Song> page(int offset, int limit) {
+        return page(playlist.sharedIndex(), offset, limit);
+    }
+
+    /**
+     * Returns the total duration of the songs of the playlist passing the filters.
+     * Without a filter expression, a single artist, genre or duration filter is answered from running totals
+     * kept by the playlist in O(1) or O(log n); other filters sum the matching songs.
+     *
+     * @return the total duration in seconds
+     */
+    public long totalDuration() {
+        return totalDuration(playlist.sharedIndex());
+    }
+
+    /**
+     * Returns the total duration of the songs of the playlist passing the filters, per genre.
+     * Without artist, duration or expression filters, the totals are kept by the playlist and cost O(1) each.
+     *
+     * @return the total duration in seconds of every genre with matching songs; songs without a genre are
+     *         left out
+     */
+    public Map<Song.Genre, Long> durationByGenre() {
+        return durationByGenre(playlist.sharedIndex());
+    }
+
+    /**
+     * Returns the number of songs in the longest prefix of the scanning order that fits in a total duration.
+     * In adding order without filters, and in duration order with at most a duration filter, the prefix is
+     * found in O(log n) with the duration trees of the playlist; otherwise the songs are summed in order.
+     *
+     * @param seconds the total duration the songs must fit in
+     * @return the number of songs that fit, 0 if the duration is negative
+     */
+    public int countFitting(int seconds) {
+        return countFitting(playlist.sharedIndex(), seconds);
+    }
+
+    /**
+     * Returns the longest prefix of the scanning order that fits in a total duration.
+     *
+     * @param seconds the total duration the songs must fit in
+     * @return the songs that fit, unmodifiable
+     * @see #countFitting(int)
+     */
+    public List<Song> fitting(int seconds) {
+        SongIndex index = playlist.sharedIndex();
+        return page(index, 0, countFitting(index, seconds));
+    }
+
+    /**
+     * Returns an iterator over the songs of the playlist passing the filters in a random order, ignoring the
+     * scanning order. Every call shuffles differently.
+     *
+     * @return an iterator over the matching songs in random order
+     * @see #shuffled(long, boolean)
+     */
+    public Iterator<Song> shuffled() {
+        return shuffled(playlist, new SplittableRandom(), false);
+    }
+
+    /**
+     * Returns an iterator over the songs of the playlist passing the filters in a random order given by a
+     * seed, ignoring the scanning order. The same seed gives the same order for the same playlist.
+     *
+     * @param seed the seed of the shuffle
+     * @return an iterator over the matching songs in random order
+     * @see #shuffled(long, boolean)
+     */
+    public Iterator<Song> shuffled(long seed) {
+        return shuffled(playlist, new SplittableRandom(seed), false);
+    }
+
+    /**
+     * Returns an iterator over the songs of the playlist passing the filters in a random order given by a
+     * seed, ignoring the scanning order. The shuffle is a lazy Fisher-Yates over the slots of the playlist:
+     * no songs are copied up front and every song is drawn in O(1) when it is asked for. When the songs
+     * are spread, a song by the same artist as the one before is put back and another one drawn, a few times
+     * at most, so songs by one artist rarely play back to back.
+     * The iterator fails fast like {@link #iterator()} once the playlist is modified while iterating.
+     *
+     * @param seed          the seed of the shuffle
+     * @param spreadArtists true to avoid consecutive songs by the same artist
+     * @return an iterator over the matching songs in random order
+     */
+    public Iterator<Song> shuffled(long seed, boolean spreadArtists) {
+        return shuffled(playlist, new SplittableRandom(seed), spreadArtists);
+    }
+
+    /**
+     * Returns a sequential stream of the songs of the playlist passing the filters, in the scanning order.
+     *
+     * @return a stream over the matching songs
+     */
+    public Stream<Song> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream of the songs of the playlist passing the filters, in the scanning order.
+     *
+     * @return a parallel stream over the matching songs
+     */
+    public Stream<Song> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Chooses the songs of an index to scan for the filters and scanning order of this query.
+     * The scan starts from the most selective artist or genre postings when the order is ADDING or when
+     * those candidates are few enough to sort; only then is a bounded list filtered and sorted up front, and
+     * kept until the index changes. Otherwise a full scan in adding order tests the filters on the columns of
+     * the index, and a scan in a sorted order walks the index kept for that order; both are filtered lazily
+     * while iterating.
+     *
+     * @param index the index holding the songs
+     * @return a spliterator over the songs passing the filters, in the scanning order
+     */
+    Spliterator<Song> plan(SongIndex index) {
+        Collection<Song> postings = selectivePostings(index);
+        if (postings == null)
+            return orderedSongs(index);
+        if (order == ScanningOrder.ADDING)
+            return filtered(index.scan(postings.toArray(new Song[0])));
+        if (!isCheaperToSort(postings.size(), index.size()))
+            return orderedSongs(index);
+        CachedCandidates cached = cachedCandidates;
+        if (cached == null || cached.index != index || cached.version != index.version()) {
+            cached = new CachedCandidates(index, sortedCandidates(postings));
+            cachedCandidates = cached;
+        }
+        return index.scan(cached.songs);
+    }
+
+    /**
+     * Plans a scan of the songs of a playlist that goes on over the index the playlist has now, even if the
+     * playlist copies the index while the scan is open, see {@link PlaylistGuard}.
+     *
+     * @param playlist the playlist to scan
+     * @return a spliterator over the songs passing the filters, in the scanning order
+     */
+    Spliterator<Song> scan(Playlist playlist) {
+        SongIndex index = playlist.sharedIndex();
+        return new PlaylistScan(plan(index), new PlaylistGuard(playlist, index));
+    }
+
+    /**
+     * Returns one page of the songs of an index passing the filters of this query, in the scanning order.
+     * Sorted candidates kept from an earlier scan are sliced directly. Otherwise, for a sorted order with
+     * artist or genre postings, the page is selected from the postings with a bounded heap when that is
+     * cheaper than walking the order index up to the end of the page; every other page is skipped to in the
+     * plan of the query.
+     *
+     * @param index  the index holding the songs
+     * @param offset the number of matching songs to skip
+     * @param limit  the maximum number of songs to return
+     * @return the songs of the page, unmodifiable
+     * @throws IllegalArgumentException if the offset or the limit is negative
+     */
+    List<Song> page(SongIndex index, int offset, int limit) {
+        if (offset < 0 || limit < 0)
+            throw new IllegalArgumentException("Negative page offset or limit");
+        int end = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        if (limit == 0)
+            return Collections.emptyList();
+        CachedCandidates cached = cachedCandidates;
+        if (cached != null && cached.index == index && cached.version == index.version()) {
+            List<Song> songs = Arrays.asList(cached.songs);
+            return Collections.unmodifiableList(songs.subList(Math.min(offset, songs.size()),
+                    Math.min(end, songs.size())));
+        }
+        if (order != ScanningOrder.ADDING) {
+            Collection<Song> postings = selectivePostings(index);
+            if (postings != null && isCheaperToSelect(postings.size(), end, index.size()))
+                return selectedPage(postings, offset, end);
+        }
+        ArrayList<Song> page = new ArrayList<>(Math.min(limit, index.size()));
+        Iterator<Song> songs = Spliterators.iterator(plan(index));
+        for (int skipped = 0; skipped < offset && songs.hasNext(); skipped++) {
+            songs.next();
+        }
+        while (page.size() < limit && songs.hasNext()) {
+            page.add(songs.next());
+        }
+        return Collections.unmodifiableList(page);
+    }
+
+    /**
+     * Returns the total duration of the songs of an index passing the filters of this query.
+     *
+     * @param index the index holding the songs
+     * @return the total duration in seconds
+     */
+    long totalDuration(SongIndex index) {
+        if (filter.isAll()) {
+            if (artist == null && genre == null)
+                return index.durationUpTo(maxDuration);
+            if (maxDuration == Integer.MAX_VALUE && genre == null)
+                return index.artistDuration(artist);
+            if (maxDuration == Integer.MAX_VALUE && artist == null)
+                return index.genreDuration(genre);
+        }
+        long[] total = new long[1];
+        plan(index).forEachRemaining(song -> total[0] += song.getDuration());
+        return total[0];
+    }
+
+    /**
+     * Returns the total duration per genre of the songs of an index passing the filters of this query.
+     *
+     * @param index the index holding the songs
+     * @return the total duration in seconds of every genre with matching songs
+     */
+    Map<Song.Genre, Long> durationByGenre(SongIndex index) {
+        EnumMap<Song.Genre, Long> totals = new EnumMap<>(Song.Genre.class);
+        if (artist == null && maxDuration == Integer.MAX_VALUE && filter.isAll()) {
+            for (Song.Genre songGenre : Song.Genre.values()) {
+                if ((genre == null || genre == songGenre) && !index.byGenre(songGenre).isEmpty())
+                    totals.put(songGenre, index.genreDuration(songGenre));
+            }
+            return totals;
+        }
+        plan(index).forEachRemaining(song -> {
+            if (song.getGenre() != null)
+                totals.merge(song.getGenre(), (long) song.getDuration(), Long::sum);
+        });
+        return totals;
+    }
+
+    /**
+     * Returns the number of songs of an index in the longest prefix of the scanning order of this query that
+     * fits in a total duration.
+     *
+     * @param index   the index holding the songs
+     * @param seconds the total duration the songs must fit in
+     * @return the number of songs that fit
+     */
+    int countFitting(SongIndex index, int seconds) {
+        if (seconds < 0)
+            return 0;
+        if (artist == null && genre == null && filter.isAll()) {
+            if (order == ScanningOrder.DURATION)
+                return index.fittingInDurationOrder(seconds, maxDuration);
+            if (order == ScanningOrder.ADDING && maxDuration == Integer.MAX_VALUE) {
+                int fitting = index.fittingInAddingOrder(seconds);
+                if (fitting >= 0)
+                    return fitting;
+            }
+        }
+        int fitting = 0;
+        long budget = seconds;
+        Iterator<Song> songs = Spliterators.iterator(plan(index));
+        while (songs.hasNext()) {
+            budget -= songs.next().getDuration();
+            if (budget < 0)
+                break;
+            ++fitting;
+        }
+        return fitting;
+    }
+
+    /**
+     * Returns the songs of a playlist passing the filters of this query in a random order.
+     * Few artist or genre postings are copied and shuffled; otherwise the slots of the index are shuffled
+     * and the filters tested on each drawn song.
+     *
+     * @param playlist      the playlist holding the songs
+     * @param random        the random generator of the shuffle
+     * @param spreadArtists true to avoid consecutive songs by the same artist
+     * @return an iterator over the matching songs in random order
+     */
+    Iterator<Song> shuffled(Playlist playlist, SplittableRandom random, boolean spreadArtists) {
+        SongIndex index = playlist.sharedIndex();
+        Collection<Song> postings = selectivePostings(index);
+        List<Song> candidates = postings != null && isCheaperToSort(postings.size(), index.size())
+                ? new ArrayList<>(postings) : index.inAddingOrder();
+        return new ShuffleIterator(candidates, hasFilters() ? compiledFilter() : null, random, spreadArtists,
+                index.guard(), new PlaylistGuard(playlist, index));
+    }
+
+    /**
+     * Selects one page of the candidate postings passing the filters with a bounded heap.
+     * The heap keeps the first songs of the scanning order seen so far, with the last of them on top, so
+     * a candidate either replaces the top or is dropped.
+     *
+     * @param postings the candidate songs
+     * @param offset   the number of matching songs to skip
+     * @param end      the index in the scanning order after the last song of the page
+     * @return the songs of the page in the scanning order, unmodifiable
+     */
+    private List<Song> selectedPage(Collection<Song> postings, int offset, int end) {
+        Comparator<Song> comparator = comparator();
+        PriorityQueue<Song> first = new PriorityQueue<>(Math.min(end, postings.size()) + 1, comparator.reversed());
+        Predicate<Song> matches = compiledFilter();
+        for (Song song : postings) {
+            if (!matches.test(song))
+                continue;
+            if (first.size() < end)
+                first.add(song);
+            else if (comparator.compare(song, first.peek()) < 0) {
+                first.poll();
+                first.add(song);
+            }
+        }
+        if (first.size() <= offset)
+            return Collections.emptyList();
+        Song[] page = new Song[first.size() - offset];
+        for (int i = page.length - 1; i >= 0; i--) {
+            page[i] = first.poll();
+        }
+        return Collections.unmodifiableList(Arrays.asList(page));
+    }
+
+    /**
+     * Checks if selecting a page from the candidate postings with a bounded heap is cheaper than walking the
+     * order index, which on average passes total / candidates songs for every candidate it finds.
+     *
+     * @param candidates the number of candidate songs
+     * @param end        the index in the scanning order after the last song of the page
+     * @param total      the number of songs in the playlist
+     * @return true if selecting from the candidates is cheaper, false otherwise
+     */
+    private static boolean isCheaperToSelect(int candidates, int end, int total) {
+        if (candidates == 0)
+            return true;
+        int log = 32 - Integer.numberOfLeadingZeros(Math.min(end, candidates));
+        return (long) candidates * log < (long) Math.min(end, candidates) * total / candidates;
+    }
+
+    /**
+     * Returns the comparator of a sorted scanning order.
+     *
+     * @return the comparator ordering the songs by name or by duration
+     */
+    private Comparator<Song> comparator() {
+        return order == ScanningOrder.NAME ? Playlist.NAME_ORDER : Playlist.DURATION_ORDER;
+    }
+
+    /**
+     * Filters the candidate postings and sorts them in the scanning order.
+     *
+     * @param postings the candidate songs
+     * @return the matching songs in the scanning order
+     */
+    private Song[] sortedCandidates(Collection<Song> postings) {
+        Predicate<Song> matches = compiledFilter();
+        ArrayList<Song> candidates = new ArrayList<>();
+        for (Song song : postings) {
+            if (matches.test(song))
+                candidates.add(song);
+        }
+        candidates.sort(comparator());
+        return candidates.toArray(new Song[0]);
+    }
+
+    /**
+     * Wraps a spliterator so it only returns the songs passing the filters.
+     *
+     * @param source the songs to filter
+     * @return the filtered songs, or the source itself if no filter is set
+     */
+    private Spliterator<Song> filtered(Spliterator<Song> source) {
+        return hasFilters() ? new FilteringSpliterator(source, compiledFilter()) : source;
+    }
+
+    /**
+     * Checks if the query filters the songs at all.
+     *
+     * @return true if any filter is set, false if every song passes
+     */
+    private boolean hasFilters() {
+        return artist != null || genre != null || maxDuration != Integer.MAX_VALUE || !filter.isAll();
+    }
+
+    /**
+     * Returns the compiled combined filter, compiling it on first use.
+     * The compiled filter keeps its clause statistics across iterations, so it learns which clauses to test
+     * first for the songs of the playlist.
+     *
+     * @return the compiled filter of the query
+     */
+    private Predicate<Song> compiledFilter() {
+        Predicate<Song> compiled = compiledFilter;
+        if (compiled == null) {
+            compiled = getFilter().compile();
+            compiledFilter = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the smallest postings among the active artist and genre filters.
+     * Postings keep the adding order of their songs.
+     *
+     * @param index the index holding the postings
+     * @return the smallest postings, or null if neither filter is set
+     */
+    private Collection<Song> selectivePostings(SongIndex index) {
+        Collection<Song> postings = null;
+        if (artist != null)
+            postings = index.byArtist(artist);
+        if (genre != null) {
+            Collection<Song> genrePostings = index.byGenre(genre);
+            if (postings == null || genrePostings.size() < postings.size())
+                postings = genrePostings;
+        }
+        return postings;
+    }
+
+    /**
+     * Checks if sorting the given number of candidates is cheaper than scanning the whole order index.
+     *
+     * @param candidates the number of candidate songs
+     * @param total      the number of songs in the playlist
+     * @return true if sorting the candidates is cheaper, false otherwise
+     */
+    private static boolean isCheaperToSort(int candidates, int total) {
+        int log = 32 - Integer.numberOfLeadingZeros(candidates);
+        return (long) candidates * log < total;
+    }
+
+    /**
+     * Returns the songs of an index passing the filters, in the scanning order.
+     *
+     * @param index the index holding the songs
+     * @return a spliterator over the filtered songs in the scanning order
+     */
+    private Spliterator<Song> orderedSongs(SongIndex index) {
+        switch (order) {
+            case NAME:
+                return filtered(index.inNameOrder());
+            case DURATION:
+                return filtered(index.inDurationOrder(maxDuration));
+            default:
+                Spliterator<Song> scan = index.scan(artist, genre, maxDuration);
+                return filter.isAll() ? scan : new FilteringSpliterator(scan, compiledFilter());
+        }
+    }
+
+    /**
+     * Sorted candidates of a query, valid as long as the index they were taken from has the same version.
+     */
+    private static final class CachedCandidates {
+        private final SongIndex index;
+        private final int version;
+        private final Song[] songs;
+
+        /**
+         * Constructs the cached candidates of the current version of an index.
+         *
+         * @param index the index the candidates were taken from
+         * @param songs the sorted candidates
+         */
+        CachedCandidates(SongIndex index, Song[] songs) {
+            this.index = index;
+            this.version = index.version();
+            this.songs = songs;
+        }
+    }
+
+    /**
+     * A lazy Fisher-Yates shuffle over a list of candidate songs. The first {@code drawn} positions hold the
+     * songs already drawn; each step picks a random position among the rest and swaps it with the first of
+     * them. Only the positions whose candidate moved are recorded, first in a small hash table and, once
+     * enough songs were drawn to pay for it, in an array over all positions, so starting a shuffle costs O(1)
+     * and every draw amortized O(1). Empty slots and songs failing the filter are drawn and dropped like any
+     * other.
+     */
+    private static final class ShuffleIterator implements Iterator<Song> {
+        private static final int SPREAD_ATTEMPTS = 8;
+        private static final int INITIAL_TABLE_CAPACITY = 16;
+
+        private final List<Song> candidates;
+        private final Predicate<Song> filter;
+        private final SplittableRandom random;
+        private final boolean spreadArtists;
+        private final SongIndex.ScanGuard guard;
+        private final PlaylistGuard playlistGuard;
+        private int[] movedPositions;
+        private int[] movedCandidates;
+        private int movedCount;
+        private int[] moved;
+        private int drawn;
+        private Song next;
+        private String lastArtist;
+
+        /**
+         * Constructs a shuffle over the given candidates.
+         *
+         * @param candidates    the candidate songs, which may hold null for empty slots
+         * @param filter        the filter the songs must pass, or null to pass every song
+         * @param random        the random generator of the shuffle
+         * @param spreadArtists true to avoid consecutive songs by the same artist
+         * @param guard         the guard of the index holding the candidates
+         * @param playlistGuard the guard of the playlist the candidates were taken from
+         */
+        ShuffleIterator(List<Song> candidates, Predicate<Song> filter, SplittableRandom random,
+                        boolean spreadArtists, SongIndex.ScanGuard guard, PlaylistGuard playlistGuard) {
+            this.candidates = candidates;
+            this.filter = filter;
+            this.random = random;
+            this.spreadArtists = spreadArtists;
+            this.guard = guard;
+            this.playlistGuard = playlistGuard;
+            this.movedPositions = new int[INITIAL_TABLE_CAPACITY];
+            this.movedCandidates = new int[INITIAL_TABLE_CAPACITY];
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null)
+                next = draw();
+            return next != null;
+        }
+
+        @Override
+        public Song next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Song song = next;
+            next = null;
+            lastArtist = song.getArtist();
+            return song;
+        }
+
+        /**
+         * Draws the next song passing the filter.
+         *
+         * @return the drawn song, or null if no songs are left
+         */
+        private Song draw() {
+            playlistGuard.check();
+            guard.check();
+            int count = candidates.size();
+            int attempts = 0;
+            while (drawn < count) {
+                int position = drawn + random.nextInt(count - drawn);
+                Song song = candidates.get(candidateAt(position));
+                if (song != null && (filter == null || filter.test(song))) {
+                    if (spreadArtists && attempts < SPREAD_ATTEMPTS && drawn + 1 < count
+                            && song.getArtist().equals(lastArtist)) {
+                        ++attempts;
+                        continue;
+                    }
+                    take(position);
+                    guard.returned(song);
+                    playlistGuard.returned(song);
+                    return song;
+                }
+                take(position);
+            }
+            return null;
+        }
+
+        /**
+         * Swaps the candidate at a position with the first candidate not drawn yet, and counts it as drawn.
+         * The drawn position is never read again, so only the other one is recorded.
+         *
+         * @param position the position of the drawn candidate
+         */
+        private void take(int position) {
+            if (position != drawn)
+                move(position, candidateAt(drawn));
+            ++drawn;
+        }
+
+        /**
+         * Returns the index of the candidate at a position of the permutation.
+         *
+         * @param position the position in the permutation
+         * @return the index of the candidate in the list
+         */
+        private int candidateAt(int position) {
+            if (moved != null) {
+                int candidate = moved[position];
+                return candidate == 0 ? position : candidate - 1;
+            }
+            int mask = movedPositions.length - 1;
+            for (int slot = hash(position) & mask; movedPositions[slot] != 0; slot = (slot + 1) & mask) {
+                if (movedPositions[slot] == position + 1)
+                    return movedCandidates[slot];
+            }
+            return position;
+        }
+
+        /**
+         * Records the candidate now held by a position.
+         * The hash table is replaced by an array over all positions once it holds an eighth of them.
+         *
+         * @param position  the position in the permutation
+         * @param candidate the index of the candidate in the list
+         */
+        private void move(int position, int candidate) {
+            if (moved != null) {
+                moved[position] = candidate + 1;
+                return;
+            }
+            int mask = movedPositions.length - 1;
+            int slot = hash(position) & mask;
+            while (movedPositions[slot] != 0 && movedPositions[slot] != position + 1) {
+                slot = (slot + 1) & mask;
+            }
+            if (movedPositions[slot] == 0)
+                ++movedCount;
+            movedPositions[slot] = position + 1;
+            movedCandidates[slot] = candidate;
+            if (movedCount > candidates.size() >> 3)
+                moveToArray();
+            else if (movedCount > movedPositions.length >> 1)
+                growTable();
+        }
+
+        /**
+         * Doubles the capacity of the hash table.
+         */
+        private void growTable() {
+            int[] positions = movedPositions;
+            int[] movedTo = movedCandidates;
+            movedPositions = new int[positions.length * 2];
+            movedCandidates = new int[positions.length * 2];
+            int mask = movedPositions.length - 1;
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] == 0)
+                    continue;
+                int slot = hash(positions[i] - 1) & mask;
+                while (movedPositions[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                movedPositions[slot] = positions[i];
+                movedCandidates[slot] = movedTo[i];
+            }
+        }
+
+        /**
+         * Moves the recorded positions from the hash table to an array over all positions.
+         */
+        private void moveToArray() {
+            moved = new int[candidates.size()];
+            for (int i = 0; i < movedPositions.length; i++) {
+                if (movedPositions[i] != 0)
+                    moved[movedPositions[i] - 1] = movedCandidates[i] + 1;
+            }
+            movedPositions = null;
+            movedCandidates = null;
+        }
+
+        /**
+         * Spreads the bits of a position over the hash table.
+         *
+         * @param position the position in the permutation
+         * @return the hash of the position
+         */
+        private static int hash(int position) {
+            int hash = position * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * A spliterator returning only the songs of another spliterator that pass a compiled filter.
+     * Splitting splits the source, so the filter is tested in parallel on every part.
+     */
+    private static class FilteringSpliterator implements Spliterator<Song>, Consumer<Song> {
+        private final Spliterator<Song> source;
+        private final Predicate<Song> filter;
+        private Song current;
+
+        /**
+         * Constructs a spliterator filtering the given source.
+         *
+         * @param source the songs to filter
+         * @param filter the compiled filter the songs must pass
+         */
+        FilteringSpliterator(Spliterator<Song> source, Predicate<Song> filter) {
+            this.source = source;
+            this.filter = filter;
+        }
+
+        @Override
+        public void accept(Song song) {
+            current = song;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Song> action) {
+            while (source.tryAdvance(this)) {
+                if (filter.test(current)) {
+                    action.accept(current);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Song> trySplit() {
+            Spliterator<Song> prefix = source.trySplit();
+            return prefix == null ? null : new FilteringSpliterator(prefix, filter);
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return source.characteristics() & ~(SIZED | SUBSIZED);
+        }
+
+        @Override
+        public Comparator<? super Song> getComparator() {
+            return source.getComparator();
+        }
+    }
+
+    /**
+     * Follows a playlist while one of its scans is open. The scan reads the index the playlist had when it
+     * started, which the guard of the scan checks while the playlist keeps it. Once the playlist copies its
+     * index to add or remove songs, the scan goes on over the index it started with, which then must not
+     * change anymore, and this guard checks the copies of the playlist instead: the only change it accepts
+     * there is the removal of the song returned last.
+     */
+    private static final class PlaylistGuard {
+        private final Playlist playlist;
+        private final SongIndex.ScanGuard scannedGuard;
+        private final SongIndex scanned;
+        private SongIndex own;
+        private SongIndex.ScanGuard ownGuard;
+
+        /**
+         * Constructs a guard of a playlist scanning the given index.
+         *
+         * @param playlist the scanned playlist
+         * @param scanned  the index of the playlist the scan reads
+         */
+        PlaylistGuard(Playlist playlist, SongIndex scanned) {
+            this(playlist, scanned, scanned.strictGuard(), null, null);
+        }
+
+        /**
+         * Constructs a guard with the given state.
+         *
+         * @param playlist     the scanned playlist
+         * @param scanned      the index of the playlist the scan reads
+         * @param scannedGuard the guard of the scanned index once the playlist left it
+         * @param own          the copy of the index the playlist has, or null if it still has the scanned one
+         * @param ownGuard     the guard of that copy, or null
+         */
+        private PlaylistGuard(Playlist playlist, SongIndex scanned, SongIndex.ScanGuard scannedGuard,
+                              SongIndex own, SongIndex.ScanGuard ownGuard) {
+            this.playlist = playlist;
+            this.scanned = scanned;
+            this.scannedGuard = scannedGuard;
+            this.own = own;
+            this.ownGuard = ownGuard;
+        }
+
+        /**
+         * Checks the playlist for changes since the last song was returned.
+         *
+         * @throws ConcurrentModificationException if the playlist copied its index and then changed other
+         *                                         songs, or the scanned index changed after it was left
+         */
+        void check() {
+            SongIndex index = playlist.sharedIndex();
+            if (index == scanned) {
+                scannedGuard.sync();
+                return;
+            }
+            scannedGuard.check();
+            if (index != own) {
+                if (ownGuard != null)
+                    ownGuard.check();
+                own = index;
+                ownGuard = index.copyGuard();
+                ownGuard.returned(scannedGuard.current());
+            }
+            ownGuard.check();
+        }
+
+        /**
+         * Records the song the scan returns.
+         *
+         * @param song the returned song
+         */
+        void returned(Song song) {
+            scannedGuard.returned(song);
+            if (ownGuard != null)
+                ownGuard.returned(song);
+        }
+
+        /**
+         * Returns a guard for a part split off the scan, expecting the same state of the playlist.
+         *
+         * @return the guard of the split part
+         */
+        PlaylistGuard split() {
+            return new PlaylistGuard(playlist, scanned, scannedGuard.split(), own,
+                    ownGuard == null ? null : ownGuard.split());
+        }
+    }
+
+    /**
+     * A spliterator over the songs of a playlist that checks the playlist with a {@link PlaylistGuard} before
+     * every song, so it fails fast on the changes the playlist makes to a copy of its index.
+     */
+    private static final class PlaylistScan implements Spliterator<Song>, Consumer<Song> {
+        private final Spliterator<Song> source;
+        private final PlaylistGuard guard;
+        private Song current;
+
+        /**
+         * Constructs a scan of a playlist.
+         *
+         * @param source the scan of the index of the playlist
+         * @param guard  the guard of the playlist
+         */
+        PlaylistScan(Spliterator<Song> source, PlaylistGuard guard) {
+            this.source = source;
+            this.guard = guard;
+        }
+
+        @Override
+        public void accept(Song song) {
+            current = song;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Song> action) {
+            guard.check();
+            if (!source.tryAdvance(this))
+                return false;
+            guard.returned(current);
+            action.accept(current);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Song> trySplit() {
+            Spliterator<Song> prefix = source.trySplit();
+            return prefix == null ? null : new PlaylistScan(prefix, guard.split());
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return source.characteristics();
+        }
+
+        @Override
+        public Comparator<? super Song> getComparator() {
+            return source.getComparator();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes elements as fixed-width records in a byte buffer, for stacks that keep their elements outside the heap.
+ * Every record of a codec takes exactly {@link #recordSize()} bytes, read and written with the absolute methods
+ * of the buffer at the given offset, so a codec never moves the position of the buffer.
+ *
+ * @param <E> the type of the encoded elements
+ * @see OffHeapStack
+ */
+public interface RecordCodec<E> {
+    /**
+     * Returns the number of bytes of every record.
+     *
+     * @return the record size, at least 1
+     */
+    int recordSize();
+
+    /**
+     * Writes an element as a record.
+     *
+     * @param element the element to write
+     * @param buffer  the buffer to write to
+     * @param offset  the offset of the record in the buffer
+     */
+    void encode(E element, ByteBuffer buffer, int offset);
+
+    /**
+     * Reads the element of a record.
+     *
+     * @param buffer the buffer to read from
+     * @param offset the offset of the record in the buffer
+     * @return the element of the record
+     */
+    E decode(ByteBuffer buffer, int offset);
+}
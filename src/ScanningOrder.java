@@ -1,5 +1,6 @@
 /**
  * Represents the scanning order options for iterating over a playlist.
+ * For a random order see {@link Playlist#shuffled()} and {@link PlaylistQuery#shuffled(long, boolean)}.
  */
 public enum ScanningOrder {
     /**
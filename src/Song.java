@@ -1,3 +1,8 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
 /**
  * Represents a song with its associated properties.
  */
@@ -6,6 +11,7 @@ public class Song implements Cloneable {
     private final String artist;
     private Genre genre;
     private int duration;
+    private ArrayList<WeakReference<SongIndex>> owners;
 
     /**
      * Constructs a new Song object with the specified name, artist, genre, and duration.
@@ -60,11 +66,67 @@ public class Song implements Cloneable {
 
     /**
      * Sets the duration of the song in seconds.
+     * Playlists holding this song are notified so their duration order stays correct. The song is locked
+     * while they are notified, but the playlists themselves are not, so the duration of a song must not be
+     * changed while other threads use a playlist holding it.
      *
      * @param duration the duration of the song in seconds
      */
-    public void setDuration(int duration) {
+    public synchronized void setDuration(int duration) {
+        if (owners == null) {
+            this.duration = duration;
+            return;
+        }
+        // An owner may hand copies of itself to its snapshots first, which can add owners sharing this song.
+        for (int i = 0; i < owners.size(); i++) {
+            SongIndex owner = owners.get(i).get();
+            if (owner == null)
+                owners.remove(i--);
+            else
+                owner.beforeDurationChange(this);
+        }
         this.duration = duration;
+        for (int i = 0; i < owners.size(); i++) {
+            SongIndex owner = owners.get(i).get();
+            if (owner != null)
+                owner.afterDurationChange(this);
+        }
+        if (owners.isEmpty())
+            owners = null;
+    }
+
+    /**
+     * Registers the index of a playlist that holds this song, so it can keep its duration order up to date.
+     * The index is only referenced weakly, so a song shared by several playlists doesn't keep the indexes
+     * of collected playlists alive. Registering is synchronized on the song, so playlists sharing the
+     * canonical songs of a {@link SongPool} can be changed by different threads.
+     *
+     * @param owner the index that holds this song
+     */
+    synchronized void addOwner(SongIndex owner) {
+        if (owners == null)
+            owners = new ArrayList<>(1);
+        // Drop the references to collected indexes each time the list doubles, keeping adds amortized O(1).
+        int size = owners.size();
+        if (size >= 2 && (size & (size - 1)) == 0)
+            owners.removeIf(reference -> reference.get() == null);
+        owners.add(owner.reference());
+    }
+
+    /**
+     * Unregisters the index of a playlist that no longer holds this song.
+     * The references to collected indexes are dropped in the same pass, so a song removed from the last live
+     * playlist holding it no longer keeps a list of owners at all.
+     *
+     * @param owner the index that no longer holds this song
+     */
+    synchronized void removeOwner(SongIndex owner) {
+        if (owners == null)
+            return;
+        WeakReference<SongIndex> reference = owner.reference();
+        owners.removeIf(registered -> registered == reference || registered.get() == null);
+        if (owners.isEmpty())
+            owners = null;
     }
 
     /**
@@ -74,8 +136,51 @@ public class Song implements Cloneable {
      */
     @Override
     public String toString() {
-        String durationString = String.format("%d:%02d", duration / 60, duration % 60);
-        return String.format("%s, %s, %s, %s", name, artist, genre, durationString);
+        StringBuilder sb = new StringBuilder(name.length() + artist.length() + 24);
+        try {
+            writeTo(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the string representation of the song to the given output, without formatting it first.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output fails
+     */
+    public void writeTo(Appendable out) throws IOException {
+        out.append(name).append(", ").append(artist).append(", ").append(String.valueOf(genre)).append(", ");
+        appendNumber(out, duration / 60);
+        out.append(':');
+        int seconds = duration % 60;
+        if (seconds >= 0 && seconds < 10)
+            out.append('0');
+        appendNumber(out, seconds);
+    }
+
+    /**
+     * Writes the decimal digits of a number to the given output, one character at a time.
+     * The digits are taken from the negated number, which also covers {@link Integer#MIN_VALUE}.
+     *
+     * @param out   the output to write to
+     * @param value the number to write
+     * @throws IOException if the output fails
+     */
+    private static void appendNumber(Appendable out, int value) throws IOException {
+        if (value < 0)
+            out.append('-');
+        else
+            value = -value;
+        int divisor = 1;
+        while (value / divisor <= -10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' - value / divisor % 10));
+        }
     }
 
     /**
@@ -86,7 +191,9 @@ public class Song implements Cloneable {
     @Override
     public Song clone() {
         try {
-            return (Song) super.clone();
+            Song copy = (Song) super.clone();
+            copy.owners = null;
+            return copy;
         } catch (CloneNotSupportedException e) {
             return null;
         }
@@ -0,0 +1,737 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * An immutable filter expression over songs, built from artist, genre and duration clauses combined with
+ * {@link #and(SongFilter)}, {@link #or(SongFilter)} and {@link #negate()}.
+ * Expressions are simplified as they are built: negations are pushed down to the clauses, nested
+ * conjunctions and disjunctions are flattened, and clauses of the same kind are merged, so for example two
+ * genre clauses become one set of genres and two duration ranges become their intersection.
+ * {@link #compile()} turns an expression into a predicate made of specialized tests that reorders the clauses
+ * of every conjunction and disjunction by their measured selectivity while it is used.
+ */
+public abstract class SongFilter {
+    private static final SongFilter ALL = new Constant(true);
+    private static final SongFilter NONE = new Constant(false);
+    private static final int NULL_GENRE_BIT = 1 << Song.Genre.values().length;
+    private static final int ALL_GENRES = (NULL_GENRE_BIT << 1) - 1;
+    private static final int REORDER_INTERVAL = 1024;
+    private static final byte CONSTANT_TAG = 0;
+    private static final byte GENRE_TAG = 1;
+    private static final byte DURATION_TAG = 2;
+    private static final byte ARTIST_TAG = 3;
+    private static final byte JUNCTION_TAG = 4;
+
+    /**
+     * Constructs a filter. Filters are only created by the factory methods of this class.
+     */
+    private SongFilter() {
+    }
+
+    /**
+     * Returns the filter every song passes.
+     *
+     * @return the filter every song passes
+     */
+    public static SongFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Returns the filter no song passes.
+     *
+     * @return the filter no song passes
+     */
+    public static SongFilter none() {
+        return NONE;
+    }
+
+    /**
+     * Returns a filter passing the songs of an artist.
+     *
+     * @param artist the artist of the songs
+     * @return a filter passing the songs of the artist
+     * @throws NullPointerException if the artist is null
+     */
+    public static SongFilter artist(String artist) {
+        return new ArtistSet(Collections.singleton(Objects.requireNonNull(artist, "artist must not be null")), true);
+    }
+
+    /**
+     * Returns a filter passing the songs of any of the given artists.
+     *
+     * @param artists the artists of the songs
+     * @return a filter passing the songs of the artists
+     * @throws NullPointerException if any of the artists is null
+     */
+    public static SongFilter artists(Collection<String> artists) {
+        HashSet<String> set = new HashSet<>();
+        for (String artist : artists) {
+            set.add(Objects.requireNonNull(artist, "artist must not be null"));
+        }
+        return ArtistSet.of(set, true);
+    }
+
+    /**
+     * Returns a filter passing the songs of any of the given artists.
+     *
+     * @param artists the artists of the songs
+     * @return a filter passing the songs of the artists
+     * @throws NullPointerException if any of the artists is null
+     */
+    public static SongFilter artists(String... artists) {
+        return artists(Arrays.asList(artists));
+    }
+
+    /**
+     * Returns a filter passing the songs of a genre.
+     *
+     * @param genre the genre of the songs, or null for songs without a genre
+     * @return a filter passing the songs of the genre
+     */
+    public static SongFilter genre(Song.Genre genre) {
+        return GenreSet.of(genreBit(genre));
+    }
+
+    /**
+     * Returns a filter passing the songs of any of the given genres.
+     *
+     * @param genres the genres of the songs, where null stands for songs without a genre
+     * @return a filter passing the songs of the genres
+     */
+    public static SongFilter genres(Song.Genre... genres) {
+        int mask = 0;
+        for (Song.Genre genre : genres) {
+            mask |= genreBit(genre);
+        }
+        return GenreSet.of(mask);
+    }
+
+    /**
+     * Returns a filter passing the songs not longer than a duration.
+     *
+     * @param maxDuration the maximum duration in seconds
+     * @return a filter passing the songs within the duration
+     */
+    public static SongFilter maxDuration(int maxDuration) {
+        return DurationRange.of(Integer.MIN_VALUE, maxDuration, true);
+    }
+
+    /**
+     * Returns a filter passing the songs with a duration within a range.
+     *
+     * @param minDuration the minimum duration in seconds, inclusive
+     * @param maxDuration the maximum duration in seconds, inclusive
+     * @return a filter passing the songs within the range
+     */
+    public static SongFilter durationBetween(int minDuration, int maxDuration) {
+        return DurationRange.of(minDuration, maxDuration, true);
+    }
+
+    /**
+     * Returns a filter passing the songs that pass every given filter.
+     *
+     * @param filters the filters to combine
+     * @return the conjunction of the filters
+     */
+    public static SongFilter allOf(SongFilter... filters) {
+        return Junction.of(Arrays.asList(filters), true);
+    }
+
+    /**
+     * Returns a filter passing the songs that pass any of the given filters.
+     *
+     * @param filters the filters to combine
+     * @return the disjunction of the filters
+     */
+    public static SongFilter anyOf(SongFilter... filters) {
+        return Junction.of(Arrays.asList(filters), false);
+    }
+
+    /**
+     * Returns a filter passing the songs that pass both this filter and another one.
+     *
+     * @param other the other filter
+     * @return the conjunction of both filters
+     */
+    public SongFilter and(SongFilter other) {
+        return allOf(this, other);
+    }
+
+    /**
+     * Returns a filter passing the songs that pass this filter, another one, or both.
+     *
+     * @param other the other filter
+     * @return the disjunction of both filters
+     */
+    public SongFilter or(SongFilter other) {
+        return anyOf(this, other);
+    }
+
+    /**
+     * Returns a filter passing exactly the songs this filter rejects.
+     *
+     * @return the negation of this filter
+     */
+    public abstract SongFilter negate();
+
+    /**
+     * Checks if every song passes this filter.
+     *
+     * @return true if this filter lets every song through, false otherwise
+     */
+    public boolean isAll() {
+        return this == ALL;
+    }
+
+    /**
+     * Compiles this filter into a predicate.
+     * A compiled predicate keeps statistics of its clauses, so it is best reused for many songs.
+     * It may be shared by several threads; the statistics are then only approximate.
+     *
+     * @return a predicate testing if a song passes this filter
+     */
+    public abstract Predicate<Song> compile();
+
+    /**
+     * Returns the relative cost of testing this filter on one song, used to order the clauses of a junction.
+     *
+     * @return the cost of testing this filter
+     */
+    abstract int cost();
+
+    /**
+     * Writes this filter as a tag byte followed by the fields of its kind, for {@link #read(DataInput)}.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output fails
+     */
+    abstract void write(DataOutput out) throws IOException;
+
+    /**
+     * Reads a filter written by {@link #write(DataOutput)}, simplifying it again as it is built.
+     *
+     * @param in the input to read from
+     * @return the filter
+     * @throws IOException if the input fails or holds no valid filter
+     */
+    static SongFilter read(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case CONSTANT_TAG:
+                return in.readBoolean() ? ALL : NONE;
+            case GENRE_TAG:
+                return GenreSet.of(in.readInt() & ALL_GENRES);
+            case DURATION_TAG:
+                return DurationRange.of(in.readInt(), in.readInt(), in.readBoolean());
+            case ARTIST_TAG: {
+                boolean inside = in.readBoolean();
+                int count = readCount(in);
+                HashSet<String> artists = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    if (!artists.add(in.readUTF()))
+                        throw new IOException("Duplicate artist in filter expression");
+                }
+                return ArtistSet.of(artists, inside);
+            }
+            case JUNCTION_TAG: {
+                boolean conjunction = in.readBoolean();
+                int count = readCount(in);
+                ArrayList<SongFilter> filters = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    filters.add(read(in));
+                }
+                return Junction.of(filters, conjunction);
+            }
+            default:
+                throw new IOException("Invalid filter tag " + tag);
+        }
+    }
+
+    /**
+     * Reads the number of elements of a filter.
+     *
+     * @param in the input to read from
+     * @return the number of elements
+     * @throws IOException if the input fails or the number is negative
+     */
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Invalid filter size " + count);
+        return count;
+    }
+
+    /**
+     * Returns the bit standing for a genre in a genre mask.
+     *
+     * @param genre the genre, or null for songs without a genre
+     * @return the bit of the genre
+     */
+    private static int genreBit(Song.Genre genre) {
+        return genre == null ? NULL_GENRE_BIT : 1 << genre.ordinal();
+    }
+
+    /**
+     * A filter every song passes, or no song passes.
+     */
+    private static final class Constant extends SongFilter {
+        private final boolean value;
+
+        /**
+         * Constructs a constant filter.
+         *
+         * @param value true if every song passes, false if no song passes
+         */
+        Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public SongFilter negate() {
+            return value ? NONE : ALL;
+        }
+
+        @Override
+        public Predicate<Song> compile() {
+            return value ? song -> true : song -> false;
+        }
+
+        @Override
+        int cost() {
+            return 0;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(CONSTANT_TAG);
+            out.writeBoolean(value);
+        }
+    }
+
+    /**
+     * A filter passing the songs whose genre is in a set, kept as a bit mask with one bit for no genre.
+     */
+    private static final class GenreSet extends SongFilter {
+        private final int mask;
+
+        /**
+         * Constructs a filter for a genre mask that is neither empty nor full.
+         *
+         * @param mask the genre mask
+         */
+        private GenreSet(int mask) {
+            this.mask = mask;
+        }
+
+        /**
+         * Returns the filter for a genre mask.
+         *
+         * @param mask the genre mask
+         * @return the filter, or a constant filter for an empty or full mask
+         */
+        static SongFilter of(int mask) {
+            if (mask == 0)
+                return NONE;
+            if (mask == ALL_GENRES)
+                return ALL;
+            return new GenreSet(mask);
+        }
+
+        @Override
+        public SongFilter negate() {
+            return of(~mask & ALL_GENRES);
+        }
+
+        @Override
+        public Predicate<Song> compile() {
+            int mask = this.mask;
+            return song -> (genreBit(song.getGenre()) & mask) != 0;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(GENRE_TAG);
+            out.writeInt(mask);
+        }
+    }
+
+    /**
+     * A filter passing the songs with a duration inside a range, or outside of it.
+     */
+    private static final class DurationRange extends SongFilter {
+        private final int min;
+        private final int max;
+        private final boolean inside;
+
+        /**
+         * Constructs a filter for a range that is neither empty nor full.
+         *
+         * @param min    the minimum duration, inclusive
+         * @param max    the maximum duration, inclusive
+         * @param inside true to pass the songs inside the range, false to pass the songs outside of it
+         */
+        private DurationRange(int min, int max, boolean inside) {
+            this.min = min;
+            this.max = max;
+            this.inside = inside;
+        }
+
+        /**
+         * Returns the filter for a range.
+         *
+         * @param min    the minimum duration, inclusive
+         * @param max    the maximum duration, inclusive
+         * @param inside true to pass the songs inside the range, false to pass the songs outside of it
+         * @return the filter, or a constant filter for an empty or full range
+         */
+        static SongFilter of(int min, int max, boolean inside) {
+            if (min > max)
+                return inside ? NONE : ALL;
+            if (min == Integer.MIN_VALUE && max == Integer.MAX_VALUE)
+                return inside ? ALL : NONE;
+            return new DurationRange(min, max, inside);
+        }
+
+        @Override
+        public SongFilter negate() {
+            return of(min, max, !inside);
+        }
+
+        @Override
+        public Predicate<Song> compile() {
+            int min = this.min;
+            int max = this.max;
+            if (min == Integer.MIN_VALUE)
+                return inside ? song -> song.getDuration() <= max : song -> song.getDuration() > max;
+            if (max == Integer.MAX_VALUE)
+                return inside ? song -> song.getDuration() >= min : song -> song.getDuration() < min;
+            if (inside)
+                return song -> song.getDuration() >= min && song.getDuration() <= max;
+            return song -> song.getDuration() < min || song.getDuration() > max;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(DURATION_TAG);
+            out.writeInt(min);
+            out.writeInt(max);
+            out.writeBoolean(inside);
+        }
+    }
+
+    /**
+     * A filter passing the songs whose artist is in a set, or not in it.
+     */
+    private static final class ArtistSet extends SongFilter {
+        private final Set<String> artists;
+        private final boolean inside;
+
+        /**
+         * Constructs a filter for a set of artists that is not empty.
+         *
+         * @param artists the artists, which must not be changed afterwards
+         * @param inside  true to pass the songs of the artists, false to pass the songs of other artists
+         */
+        private ArtistSet(Set<String> artists, boolean inside) {
+            this.artists = artists;
+            this.inside = inside;
+        }
+
+        /**
+         * Returns the filter for a set of artists.
+         *
+         * @param artists the artists, which must not be changed afterwards
+         * @param inside  true to pass the songs of the artists, false to pass the songs of other artists
+         * @return the filter, or a constant filter for an empty set
+         */
+        static SongFilter of(Set<String> artists, boolean inside) {
+            if (artists.isEmpty())
+                return inside ? NONE : ALL;
+            return new ArtistSet(artists, inside);
+        }
+
+        @Override
+        public SongFilter negate() {
+            return new ArtistSet(artists, !inside);
+        }
+
+        @Override
+        public Predicate<Song> compile() {
+            if (artists.size() == 1) {
+                String artist = artists.iterator().next();
+                return inside ? song -> artist.equals(song.getArtist()) : song -> !artist.equals(song.getArtist());
+            }
+            Set<String> artists = this.artists;
+            return inside ? song -> artists.contains(song.getArtist()) : song -> !artists.contains(song.getArtist());
+        }
+
+        @Override
+        int cost() {
+            return artists.size() == 1 ? 2 : 3;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(ARTIST_TAG);
+            out.writeBoolean(inside);
+            out.writeInt(artists.size());
+            for (String artist : artists) {
+                out.writeUTF(artist);
+            }
+        }
+    }
+
+    /**
+     * A conjunction or disjunction of at least two filters, none of which is of the same kind.
+     */
+    private static final class Junction extends SongFilter {
+        private final List<SongFilter> filters;
+        private final boolean conjunction;
+
+        /**
+         * Constructs a junction of already simplified filters.
+         *
+         * @param filters     the combined filters
+         * @param conjunction true for a conjunction, false for a disjunction
+         */
+        private Junction(List<SongFilter> filters, boolean conjunction) {
+            this.filters = filters;
+            this.conjunction = conjunction;
+        }
+
+        /**
+         * Combines filters into a conjunction or disjunction, simplifying it.
+         * Nested junctions of the same kind are flattened, constants are folded, and genre clauses, duration
+         * ranges and artist sets are merged where the result is again a single clause.
+         *
+         * @param filters     the filters to combine
+         * @param conjunction true for a conjunction, false for a disjunction
+         * @return the simplified combination
+         */
+        static SongFilter of(List<SongFilter> filters, boolean conjunction) {
+            SongFilter neutral = conjunction ? ALL : NONE;
+            SongFilter absorbing = conjunction ? NONE : ALL;
+            ArrayList<SongFilter> flat = new ArrayList<>();
+            for (SongFilter filter : filters) {
+                if (filter instanceof Junction && ((Junction) filter).conjunction == conjunction)
+                    flat.addAll(((Junction) filter).filters);
+                else
+                    flat.add(filter);
+            }
+            int genres = conjunction ? ALL_GENRES : 0;
+            int min = Integer.MIN_VALUE;
+            int max = Integer.MAX_VALUE;
+            boolean hasRange = false;
+            Set<String> artists = null;
+            ArrayList<SongFilter> others = new ArrayList<>();
+            for (SongFilter filter : flat) {
+                if (filter == absorbing)
+                    return absorbing;
+                if (filter == neutral)
+                    continue;
+                if (filter instanceof GenreSet) {
+                    int mask = ((GenreSet) filter).mask;
+                    genres = conjunction ? genres & mask : genres | mask;
+                } else if (conjunction && filter instanceof DurationRange && ((DurationRange) filter).inside) {
+                    DurationRange range = (DurationRange) filter;
+                    min = Math.max(min, range.min);
+                    max = Math.min(max, range.max);
+                    hasRange = true;
+                } else if (filter instanceof ArtistSet && ((ArtistSet) filter).inside) {
+                    Set<String> merged = ((ArtistSet) filter).artists;
+                    if (artists == null) {
+                        artists = merged;
+                    } else {
+                        artists = new HashSet<>(artists);
+                        if (conjunction)
+                            artists.retainAll(merged);
+                        else
+                            artists.addAll(merged);
+                    }
+                } else {
+                    others.add(filter);
+                }
+            }
+            ArrayList<SongFilter> merged = new ArrayList<>();
+            merged.add(GenreSet.of(genres));
+            if (hasRange)
+                merged.add(DurationRange.of(min, max, true));
+            if (artists != null)
+                merged.add(ArtistSet.of(artists, true));
+            for (SongFilter filter : merged) {
+                if (filter == absorbing)
+                    return absorbing;
+                if (filter != neutral)
+                    others.add(filter);
+            }
+            if (others.isEmpty())
+                return neutral;
+            if (others.size() == 1)
+                return others.get(0);
+            return new Junction(Collections.unmodifiableList(others), conjunction);
+        }
+
+        @Override
+        public SongFilter negate() {
+            ArrayList<SongFilter> negated = new ArrayList<>(filters.size());
+            for (SongFilter filter : filters) {
+                negated.add(filter.negate());
+            }
+            return of(negated, !conjunction);
+        }
+
+        @Override
+        public Predicate<Song> compile() {
+            Clause[] clauses = new Clause[filters.size()];
+            for (int i = 0; i < clauses.length; i++) {
+                SongFilter filter = filters.get(i);
+                clauses[i] = new Clause(filter.compile(), filter.cost());
+            }
+            Arrays.sort(clauses, (first, second) -> Integer.compare(first.cost, second.cost));
+            return new AdaptiveJunction(clauses, !conjunction);
+        }
+
+        @Override
+        int cost() {
+            int cost = 0;
+            for (SongFilter filter : filters) {
+                cost += filter.cost();
+            }
+            return cost;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(JUNCTION_TAG);
+            out.writeBoolean(conjunction);
+            out.writeInt(filters.size());
+            for (SongFilter filter : filters) {
+                filter.write(out);
+            }
+        }
+    }
+
+    /**
+     * A compiled clause of a junction, with counts of how often it was tested and decided the junction.
+     */
+    private static final class Clause {
+        private final Predicate<Song> predicate;
+        private final int cost;
+        private int tests;
+        private int decisions;
+
+        /**
+         * Constructs a clause.
+         *
+         * @param predicate the compiled clause
+         * @param cost      the relative cost of testing the clause
+         */
+        Clause(Predicate<Song> predicate, int cost) {
+            this.predicate = predicate;
+            this.cost = cost;
+        }
+
+        /**
+         * Returns how much testing this clause early is worth: the chance it decides the junction per unit of
+         * cost, smoothed so that clauses tested rarely keep a neutral estimate.
+         *
+         * @return the score of the clause, higher is tested earlier
+         */
+        double score() {
+            return (decisions + 1.0) / ((tests + 2.0) * cost);
+        }
+    }
+
+    /**
+     * A compiled conjunction or disjunction that stops at the first clause deciding the result.
+     * Every {@value #REORDER_INTERVAL} tests, the clauses are reordered so the ones that most often decide
+     * the result for their cost come first, and the counts are halved so the order follows changing data.
+     */
+    private static final class AdaptiveJunction implements Predicate<Song> {
+        private volatile Clause[] clauses;
+        private final boolean decidingResult;
+        private int tests;
+
+        /**
+         * Constructs a compiled junction.
+         *
+         * @param clauses        the clauses in their initial order
+         * @param decidingResult the clause result that decides the junction: false for a conjunction,
+         *                       true for a disjunction
+         */
+        AdaptiveJunction(Clause[] clauses, boolean decidingResult) {
+            this.clauses = clauses;
+            this.decidingResult = decidingResult;
+        }
+
+        @Override
+        public boolean test(Song song) {
+            Clause[] current = clauses;
+            if (++tests >= REORDER_INTERVAL) {
+                tests = 0;
+                current = reorder(current);
+            }
+            for (Clause clause : current) {
+                ++clause.tests;
+                if (clause.predicate.test(song) == decidingResult) {
+                    ++clause.decisions;
+                    return decidingResult;
+                }
+            }
+            return !decidingResult;
+        }
+
+        /**
+         * Orders the clauses by their score and halves their counts.
+         * The reordered clauses are published as a new array, so concurrent tests keep a consistent order.
+         *
+         * @param current the clauses in their current order
+         * @return the reordered clauses
+         */
+        private Clause[] reorder(Clause[] current) {
+            Clause[] reordered = current.clone();
+            double[] scores = new double[reordered.length];
+            for (int i = 0; i < reordered.length; i++) {
+                Clause clause = reordered[i];
+                scores[i] = clause.score();
+                clause.tests >>= 1;
+                clause.decisions >>= 1;
+            }
+            // The counts may change under concurrent tests, so the clauses are sorted by the scores taken above.
+            for (int i = 1; i < reordered.length; i++) {
+                Clause clause = reordered[i];
+                double score = scores[i];
+                int j = i - 1;
+                for (; j >= 0 && scores[j] < score; j--) {
+                    reordered[j + 1] = reordered[j];
+                    scores[j + 1] = scores[j];
+                }
+                reordered[j + 1] = clause;
+                scores[j + 1] = score;
+            }
+            clauses = reordered;
+            return reordered;
+        }
+    }
+}
@@ -0,0 +1,1173 @@
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the songs of a playlist together with the indexes used to look them up, order and filter them.
+ * Besides the songs themselves, the fields used by filters are kept in columns of primitive arrays, one entry
+ * per slot of the adding order, so a full scan reads contiguous memory and loads only the matching songs.
+ * An index can be shared by the playlist that owns it and by snapshots cloned from that playlist, see
+ * {@link Playlist#clone()}. A playlist adding or removing songs takes a copy of a shared index first, so the
+ * shared songs only change here when the duration of one of them changes; the snapshots are then given
+ * copies of their own first.
+ * <p>
+ * Scans of the index fail fast with a {@link ConcurrentModificationException} once the index changes under
+ * them, with one exception: removing the song a scan returned last, so a loop can remove its current song.
+ */
+class SongIndex {
+    private static final LinkedHashSet<Song> EMPTY_POSTINGS = new LinkedHashSet<>();
+    private static final int INITIAL_COLUMN_CAPACITY = 16;
+    private static final byte NO_GENRE = -1;
+    private static final int TREE_DURATION_LIMIT = 1 << 16;
+
+    private ArrayList<Song> songs;
+    private int[] durations;
+    private byte[] genres;
+    private int[] artistIds;
+    private int[] nameIds;
+    private final Dictionary artists;
+    private final Dictionary names;
+    private final HashMap<Song, Integer> positions;
+    private int removedCount;
+    private int hashSum;
+    private int version;
+    private int modCount;
+    private Song lastRemoved;
+    private final TreeSet<Song> byName;
+    private final TreeSet<Song> byDuration;
+    private final HashMap<String, LinkedHashSet<Song>> byArtist;
+    private final EnumMap<Song.Genre, LinkedHashSet<Song>> byGenre;
+    private long totalDuration;
+    private final long[] genreDurations;
+    private long[] artistDurations;
+    private DurationTree slotTree;
+    private final DurationTree durationTree;
+    private final TreeMap<Integer, Integer> untreedDurations;
+    private ArrayList<WeakReference<Playlist>> snapshots;
+    private final WeakReference<SongIndex> reference = new WeakReference<>(this);
+
+    /**
+     * Constructs an empty index.
+     */
+    SongIndex() {
+        songs = new ArrayList<>();
+        durations = new int[INITIAL_COLUMN_CAPACITY];
+        genres = new byte[INITIAL_COLUMN_CAPACITY];
+        artistIds = new int[INITIAL_COLUMN_CAPACITY];
+        nameIds = new int[INITIAL_COLUMN_CAPACITY];
+        artists = new Dictionary();
+        names = new Dictionary();
+        positions = new HashMap<>();
+        removedCount = 0;
+        byName = new TreeSet<>(Playlist.NAME_ORDER);
+        byDuration = new TreeSet<>(Playlist.DURATION_ORDER);
+        byArtist = new HashMap<>();
+        byGenre = new EnumMap<>(Song.Genre.class);
+        genreDurations = new long[Song.Genre.values().length + 1];
+        artistDurations = new long[INITIAL_COLUMN_CAPACITY];
+        slotTree = new DurationTree(INITIAL_COLUMN_CAPACITY);
+        durationTree = new DurationTree(INITIAL_COLUMN_CAPACITY);
+        untreedDurations = new TreeMap<>();
+    }
+
+    /**
+     * Constructs a copy of an index holding its songs, or clones of them, in the same adding order.
+     * The sorted indexes and postings are copied in order rather than rebuilt, so copying takes O(n).
+     *
+     * @param source     the index to copy
+     * @param cloneSongs true to index clones of the songs, false to index the same song instances
+     */
+    private SongIndex(SongIndex source, boolean cloneSongs) {
+        int size = source.positions.size();
+        int capacity = Math.max(INITIAL_COLUMN_CAPACITY, size + (size >> 1));
+        songs = new ArrayList<>(capacity);
+        durations = new int[capacity];
+        genres = new byte[capacity];
+        artistIds = new int[capacity];
+        nameIds = new int[capacity];
+        positions = new HashMap<>(hashCapacity(size));
+        Song[] copies = cloneSongs ? new Song[source.songs.size()] : null;
+        for (int read = 0; read < source.songs.size(); read++) {
+            Song song = source.songs.get(read);
+            if (song == null)
+                continue;
+            int write = songs.size();
+            if (cloneSongs) {
+                song = song.clone();
+                copies[read] = song;
+            }
+            songs.add(song);
+            durations[write] = source.durations[read];
+            genres[write] = source.genres[read];
+            artistIds[write] = source.artistIds[read];
+            nameIds[write] = source.nameIds[read];
+            positions.put(song, write);
+        }
+        UnaryOperator<Song> copy = cloneSongs ? song -> copies[source.positions.get(song)] : UnaryOperator.identity();
+        artists = new Dictionary(source.artists);
+        names = new Dictionary(source.names);
+        removedCount = 0;
+        hashSum = source.hashSum;
+        byName = new TreeSet<>(cloneSongs ? new CopiedSortedSet(source.byName, copy) : source.byName);
+        byDuration = new TreeSet<>(cloneSongs ? new CopiedSortedSet(source.byDuration, copy) : source.byDuration);
+        byArtist = new HashMap<>(hashCapacity(source.byArtist.size()));
+        for (Map.Entry<String, LinkedHashSet<Song>> postings : source.byArtist.entrySet()) {
+            byArtist.put(postings.getKey(), copyPostings(postings.getValue(), copy));
+        }
+        byGenre = new EnumMap<>(Song.Genre.class);
+        for (Map.Entry<Song.Genre, LinkedHashSet<Song>> postings : source.byGenre.entrySet()) {
+            byGenre.put(postings.getKey(), copyPostings(postings.getValue(), copy));
+        }
+        totalDuration = source.totalDuration;
+        genreDurations = source.genreDurations.clone();
+        artistDurations = source.artistDurations.clone();
+        slotTree = new DurationTree(capacity, durations, size);
+        durationTree = new DurationTree(source.durationTree);
+        untreedDurations = new TreeMap<>(source.untreedDurations);
+        for (Song song : songs) {
+            song.addOwner(this);
+        }
+    }
+
+    /**
+     * Returns the initial capacity of a hash map that holds the given number of entries without rehashing.
+     *
+     * @param size the number of entries
+     * @return the initial capacity of the map
+     */
+    private static int hashCapacity(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    /**
+     * Copies postings in order, replacing every song by its copy.
+     *
+     * @param postings the postings to copy
+     * @param copy     the function returning the copy of a song
+     * @return the copied postings
+     */
+    private static LinkedHashSet<Song> copyPostings(LinkedHashSet<Song> postings, UnaryOperator<Song> copy) {
+        LinkedHashSet<Song> copied = new LinkedHashSet<>(hashCapacity(postings.size()));
+        for (Song song : postings) {
+            copied.add(copy.apply(song));
+        }
+        return copied;
+    }
+
+    /**
+     * Adds a song unless an equal song is already indexed.
+     *
+     * @param song the song to add
+     * @return true if the song was added, false if an equal song is already indexed
+     */
+    boolean add(Song song) {
+        if (positions.containsKey(song))
+            return false;
+        releaseSnapshots();
+        int position = songs.size();
+        if (position == durations.length)
+            growColumns();
+        durations[position] = song.getDuration();
+        genres[position] = song.getGenre() == null ? NO_GENRE : (byte) song.getGenre().ordinal();
+        artistIds[position] = artists.add(song.getArtist());
+        nameIds[position] = names.add(song.getName());
+        account(position, song.getDuration(), 1);
+        positions.put(song, position);
+        songs.add(song);
+        hashSum += song.hashCode();
+        ++version;
+        ++modCount;
+        byName.add(song);
+        byDuration.add(song);
+        byArtist.computeIfAbsent(song.getArtist(), artist -> new LinkedHashSet<>()).add(song);
+        if (song.getGenre() != null)
+            byGenre.computeIfAbsent(song.getGenre(), genre -> new LinkedHashSet<>()).add(song);
+        song.addOwner(this);
+        return true;
+    }
+
+    /**
+     * Removes the song equal to the given one.
+     * The slot of the removed song is left empty and reclaimed later by {@link #compact()}.
+     *
+     * @param song the song to remove
+     * @return true if the song was removed, false otherwise
+     */
+    boolean remove(Song song) {
+        if (!positions.containsKey(song))
+            return false;
+        releaseSnapshots();
+        unindex(positions.remove(song));
+        compactIfSparse();
+        return true;
+    }
+
+    /**
+     * Removes the songs equal to any of the given ones, compacting the slots at most once at the end.
+     *
+     * @param removed the songs to remove
+     * @return the number of removed songs
+     */
+    int removeAll(Collection<? extends Song> removed) {
+        int count = 0;
+        for (Song song : removed) {
+            if (!positions.containsKey(song))
+                continue;
+            if (count++ == 0)
+                releaseSnapshots();
+            unindex(positions.remove(song));
+        }
+        compactIfSparse();
+        return count;
+    }
+
+    /**
+     * Removes the songs passing a filter in one pass over the adding order, then compacts the slots once.
+     *
+     * @param filter the filter selecting the songs to remove
+     * @return the number of removed songs
+     */
+    int removeIf(Predicate<? super Song> filter) {
+        int count = 0;
+        for (int position = 0; position < songs.size(); position++) {
+            Song song = songs.get(position);
+            if (song == null || !filter.test(song))
+                continue;
+            if (count++ == 0)
+                releaseSnapshots();
+            positions.remove(song);
+            unindex(position);
+        }
+        compactIfSparse();
+        return count;
+    }
+
+    /**
+     * Checks if any indexed song passes a filter, in adding order.
+     *
+     * @param filter the filter to test
+     * @return true if a song passes the filter, false otherwise
+     */
+    boolean anyMatch(Predicate<? super Song> filter) {
+        for (int position = 0; position < songs.size(); position++) {
+            Song song = songs.get(position);
+            if (song != null && filter.test(song))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the song in a slot out of every index but the positions, leaving the slot empty.
+     *
+     * @param position the slot of the song
+     */
+    private void unindex(int position) {
+        Song stored = songs.get(position);
+        account(position, durations[position], -1);
+        hashSum -= stored.hashCode();
+        ++version;
+        ++modCount;
+        lastRemoved = stored;
+        byName.remove(stored);
+        byDuration.remove(stored);
+        removePosting(byArtist, stored.getArtist(), stored);
+        if (stored.getGenre() != null)
+            removePosting(byGenre, stored.getGenre(), stored);
+        stored.removeOwner(this);
+        songs.set(position, null);
+        ++removedCount;
+    }
+
+    /**
+     * Compacts the slots once more of them are empty than hold songs.
+     */
+    private void compactIfSparse() {
+        if (removedCount > positions.size())
+            compact();
+    }
+
+    /**
+     * Adds the duration of the song in a slot to the running totals and duration trees, or takes it out.
+     * Durations outside the range of the duration tree are counted in {@code untreedDurations} instead.
+     *
+     * @param position the slot of the song
+     * @param duration the duration of the song
+     * @param count    1 to add the song, -1 to take it out
+     */
+    private void account(int position, int duration, int count) {
+        long delta = (long) duration * count;
+        totalDuration += delta;
+        byte genre = genres[position];
+        genreDurations[genre == NO_GENRE ? genreDurations.length - 1 : genre] += delta;
+        int artistId = artistIds[position];
+        if (artistId >= artistDurations.length)
+            artistDurations = Arrays.copyOf(artistDurations, Math.max(artistId + 1, 2 * artistDurations.length));
+        artistDurations[artistId] += delta;
+        slotTree.add(position, count, delta);
+        if (duration >= 0 && duration < TREE_DURATION_LIMIT)
+            durationTree.add(duration, count, delta);
+        else if (untreedDurations.merge(duration, count, Integer::sum) == 0)
+            untreedDurations.remove(duration);
+    }
+
+    /**
+     * Removes a song from the postings of a key, dropping the postings once they are empty.
+     *
+     * @param index the index holding the postings
+     * @param key   the key of the postings
+     * @param song  the song to remove
+     * @param <K>   the type of the index keys
+     */
+    private static <K> void removePosting(Map<K, LinkedHashSet<Song>> index, K key, Song song) {
+        LinkedHashSet<Song> postings = index.get(key);
+        postings.remove(song);
+        if (postings.isEmpty())
+            index.remove(key);
+    }
+
+    /**
+     * Doubles the length of the columns.
+     */
+    private void growColumns() {
+        int capacity = durations.length * 2;
+        durations = Arrays.copyOf(durations, capacity);
+        genres = Arrays.copyOf(genres, capacity);
+        artistIds = Arrays.copyOf(artistIds, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+    }
+
+    /**
+     * Removes the empty slots left by removed songs, keeping the adding order of the remaining songs.
+     * The remaining songs are moved to new columns, so a scan still reading the old ones after removing its
+     * current song goes on with the songs after it.
+     */
+    private void compact() {
+        ArrayList<Song> compacted = new ArrayList<>(Math.max(positions.size(), INITIAL_COLUMN_CAPACITY));
+        int capacity = durations.length;
+        int[] compactedDurations = new int[capacity];
+        byte[] compactedGenres = new byte[capacity];
+        int[] compactedArtistIds = new int[capacity];
+        int[] compactedNameIds = new int[capacity];
+        int write = 0;
+        for (int read = 0; read < songs.size(); read++) {
+            Song song = songs.get(read);
+            if (song != null) {
+                compacted.add(song);
+                compactedDurations[write] = durations[read];
+                compactedGenres[write] = genres[read];
+                compactedArtistIds[write] = artistIds[read];
+                compactedNameIds[write] = nameIds[read];
+                positions.put(song, write);
+                ++write;
+            }
+        }
+        songs = compacted;
+        durations = compactedDurations;
+        genres = compactedGenres;
+        artistIds = compactedArtistIds;
+        nameIds = compactedNameIds;
+        removedCount = 0;
+        slotTree = new DurationTree(durations.length, durations, write);
+    }
+
+    /**
+     * Checks if a song equal to the given one is indexed.
+     *
+     * @param song the song to look for
+     * @return true if an equal song is indexed, false otherwise
+     */
+    boolean contains(Song song) {
+        return positions.containsKey(song);
+    }
+
+    /**
+     * Returns the indexed song that is equal to the given one.
+     *
+     * @param song the song to look for
+     * @return the indexed song, or null if no equal song is indexed
+     */
+    Song get(Song song) {
+        Integer position = positions.get(song);
+        return position == null ? null : songs.get(position);
+    }
+
+    /**
+     * Returns the number of indexed songs.
+     *
+     * @return the number of indexed songs
+     */
+    int size() {
+        return positions.size();
+    }
+
+    /**
+     * Returns the sum of the hash codes of the indexed songs, kept up to date on every change.
+     * Songs hash by name and artist, which never change, so the sum stays correct when a song changes.
+     *
+     * @return the hash code of the set of indexed songs
+     */
+    int hashSum() {
+        return hashSum;
+    }
+
+    /**
+     * Returns a number that changes whenever a song is added or removed, or the duration of a song changes.
+     *
+     * @return the version of the indexed songs
+     */
+    int version() {
+        return version;
+    }
+
+    /**
+     * Returns the total duration of the indexed songs.
+     *
+     * @return the total duration in seconds
+     */
+    long totalDuration() {
+        return totalDuration;
+    }
+
+    /**
+     * Returns the total duration of the indexed songs of a genre.
+     *
+     * @param genre the genre, or null for the songs without a genre
+     * @return the total duration in seconds
+     */
+    long genreDuration(Song.Genre genre) {
+        return genreDurations[genre == null ? genreDurations.length - 1 : genre.ordinal()];
+    }
+
+    /**
+     * Returns the total duration of the indexed songs of an artist.
+     *
+     * @param artist the artist
+     * @return the total duration in seconds
+     */
+    long artistDuration(String artist) {
+        int artistId = artists.find(artist);
+        return artistId < 0 || artistId >= artistDurations.length ? 0 : artistDurations[artistId];
+    }
+
+    /**
+     * Returns the total duration of the indexed songs not longer than a duration, in O(log n).
+     *
+     * @param maxDuration the maximum duration of the summed songs
+     * @return the total duration in seconds
+     */
+    long durationUpTo(int maxDuration) {
+        if (maxDuration == Integer.MAX_VALUE)
+            return totalDuration;
+        long total = maxDuration < 0 ? 0 : durationTree.sum(treeEnd(maxDuration));
+        for (Map.Entry<Integer, Integer> untreed : untreedDurations.headMap(maxDuration, true).entrySet()) {
+            total += (long) untreed.getKey() * untreed.getValue();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of songs in the longest prefix of the adding order whose total duration fits in a
+     * budget, in O(log n). The prefix is only found this way while no song has a negative duration.
+     *
+     * @param budget the total duration the songs must fit in
+     * @return the number of songs of the prefix, or -1 if a song has a negative duration
+     */
+    int fittingInAddingOrder(long budget) {
+        if (!untreedDurations.isEmpty() && untreedDurations.firstKey() < 0)
+            return -1;
+        if (budget < 0)
+            return 0;
+        return slotTree.count(slotTree.longestPrefix(budget));
+    }
+
+    /**
+     * Returns the number of songs in the longest prefix of the duration order, restricted to the songs not
+     * longer than a duration, whose total duration fits in a budget. The shortest songs are taken first, so
+     * this is also the most songs that fit. Takes O(log n) besides the few songs whose durations are negative
+     * or too long for the duration tree.
+     *
+     * @param budget      the total duration the songs must fit in
+     * @param maxDuration the maximum duration of the songs
+     * @return the number of songs of the prefix, 0 if the budget is negative
+     */
+    int fittingInDurationOrder(long budget, int maxDuration) {
+        if (budget < 0)
+            return 0;
+        int fitting = 0;
+        for (Map.Entry<Integer, Integer> untreed : untreedDurations.headMap(0, false).entrySet()) {
+            if (untreed.getKey() > maxDuration)
+                return fitting;
+            fitting += untreed.getValue();
+            budget -= (long) untreed.getKey() * untreed.getValue();
+        }
+        if (maxDuration < 0)
+            return fitting;
+        int limit = Math.min(treeEnd(maxDuration), durationTree.capacity());
+        int end = Math.min(durationTree.longestPrefix(budget), limit);
+        fitting += durationTree.count(end);
+        budget -= durationTree.sum(end);
+        if (end < limit)
+            return fitting + (int) Math.min(durationTree.count(end + 1) - durationTree.count(end), budget / end);
+        for (Map.Entry<Integer, Integer> untreed : untreedDurations.tailMap(0, true).entrySet()) {
+            int duration = untreed.getKey();
+            if (duration > maxDuration)
+                break;
+            long taken = Math.min(untreed.getValue(), budget / duration);
+            fitting += (int) taken;
+            budget -= taken * duration;
+            if (taken < untreed.getValue())
+                break;
+        }
+        return fitting;
+    }
+
+    /**
+     * Returns the key of the duration tree after the given duration.
+     *
+     * @param maxDuration a duration, at least 0
+     * @return the end of the keys not longer than the duration
+     */
+    private static int treeEnd(int maxDuration) {
+        return (int) Math.min((long) maxDuration + 1, TREE_DURATION_LIMIT);
+    }
+
+    /**
+     * Checks if this index holds the same songs as another one, compared by {@link Song#equals(Object)}.
+     * Indexes differing in size or hash sum are told apart without looking at the songs.
+     *
+     * @param other the other index
+     * @return true if both indexes hold equal songs, false otherwise
+     */
+    boolean hasSameSongs(SongIndex other) {
+        if (this == other)
+            return true;
+        if (positions.size() != other.positions.size() || hashSum != other.hashSum)
+            return false;
+        for (int i = 0; i < songs.size(); i++) {
+            Song song = songs.get(i);
+            if (song != null && !other.positions.containsKey(song))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the songs in adding order. Slots of removed songs may hold null.
+     * The list is replaced rather than shifted when the slots are compacted.
+     *
+     * @return the songs in adding order
+     */
+    ArrayList<Song> inAddingOrder() {
+        return songs;
+    }
+
+    /**
+     * Returns the songs that pass the given filters in adding order, testing the filters on the columns.
+     * A song is only loaded once it is known to match.
+     *
+     * @param artist      the artist to filter by, or null for any artist
+     * @param genre       the genre to filter by, or null for any genre
+     * @param maxDuration the maximum duration to filter by
+     * @return a spliterator over the matching songs, splitting the slots in halves
+     */
+    Spliterator<Song> scan(String artist, Song.Genre genre, int maxDuration) {
+        ColumnFilter filter = new ColumnFilter(artist, genre, maxDuration);
+        return new ColumnScan(filter, 0, filter.songs.size(), new ScanGuard(false));
+    }
+
+    /**
+     * Returns the songs ordered by {@link Playlist#NAME_ORDER}.
+     *
+     * @return a spliterator over the songs in name order
+     */
+    Spliterator<Song> inNameOrder() {
+        return new GuardedScan(byName.spliterator(), byName, new ScanGuard(false));
+    }
+
+    /**
+     * Returns the songs not longer than the given duration, ordered by {@link Playlist#DURATION_ORDER}.
+     * The scan also fails once the duration of a song changes, since that moves the song in the order.
+     *
+     * @param maxDuration the maximum duration of the returned songs
+     * @return a spliterator over the songs within the duration, in duration order
+     */
+    Spliterator<Song> inDurationOrder(int maxDuration) {
+        NavigableSet<Song> songs = maxDuration == Integer.MAX_VALUE ? byDuration
+                : byDuration.headSet(new Song("", "", null, maxDuration + 1), false);
+        return new GuardedScan(songs.spliterator(), songs, new ScanGuard(true));
+    }
+
+    /**
+     * Returns a scan over an array of songs taken from this index, failing fast like the other scans.
+     *
+     * @param songs the songs to scan, which must not change
+     * @return a spliterator over the songs in the order of the array
+     */
+    Spliterator<Song> scan(Song[] songs) {
+        return new GuardedScan(Spliterators.spliterator(songs, Spliterator.ORDERED | Spliterator.NONNULL), null,
+                new ScanGuard(false));
+    }
+
+    /**
+     * Returns a guard failing a scan of this index once the index changes, for scans kept outside the index.
+     *
+     * @return a guard of the current state of the index
+     */
+    ScanGuard guard() {
+        return new ScanGuard(false);
+    }
+
+    /**
+     * Returns a guard that also rejects duration changes, for scans handing out the songs of another index.
+     *
+     * @return a guard of the current state of the index
+     */
+    ScanGuard strictGuard() {
+        return new ScanGuard(true);
+    }
+
+    /**
+     * Returns a guard of the state this index had when it was created by {@link #copy(boolean)}, which
+     * rejects duration changes as well. A scan of the copied index checks the copy with it.
+     *
+     * @return a guard expecting the copy unchanged
+     */
+    ScanGuard copyGuard() {
+        ScanGuard guard = new ScanGuard(true);
+        guard.expectedModCount = 0;
+        guard.expectedVersion = 0;
+        return guard;
+    }
+
+    /**
+     * Returns the songs of an artist in adding order.
+     *
+     * @param artist the artist of the songs
+     * @return the songs of the artist
+     */
+    Collection<Song> byArtist(String artist) {
+        return byArtist.getOrDefault(artist, EMPTY_POSTINGS);
+    }
+
+    /**
+     * Returns the songs of a genre in adding order.
+     *
+     * @param genre the genre of the songs
+     * @return the songs of the genre
+     */
+    Collection<Song> byGenre(Song.Genre genre) {
+        return byGenre.getOrDefault(genre, EMPTY_POSTINGS);
+    }
+
+    /**
+     * Takes an indexed song out of the duration index before its duration changes.
+     * Snapshots sharing this index get their own copies first, so they keep the old duration.
+     * Called by {@link Song#setDuration(int)}.
+     *
+     * @param song the song whose duration is about to change
+     */
+    void beforeDurationChange(Song song) {
+        releaseSnapshots();
+        byDuration.remove(song);
+    }
+
+    /**
+     * Puts an indexed song back into the duration index after its duration changed.
+     * Called by {@link Song#setDuration(int)}.
+     *
+     * @param song the song whose duration has changed
+     */
+    void afterDurationChange(Song song) {
+        byDuration.add(song);
+        int position = positions.get(song);
+        account(position, durations[position], -1);
+        durations[position] = song.getDuration();
+        account(position, song.getDuration(), 1);
+        ++version;
+    }
+
+    /**
+     * Creates an index holding the indexed songs, or clones of them, in the same adding order.
+     *
+     * @param cloneSongs true to index clones of the songs, false to index the same song instances
+     * @return the new index
+     */
+    SongIndex copy(boolean cloneSongs) {
+        return new SongIndex(this, cloneSongs);
+    }
+
+    /**
+     * Returns the weak reference to this index that the indexed songs hold.
+     *
+     * @return the weak reference to this index
+     */
+    WeakReference<SongIndex> reference() {
+        return reference;
+    }
+
+    /**
+     * Registers a snapshot playlist that shares this index without owning its songs.
+     *
+     * @param snapshot the snapshot playlist
+     */
+    void addSnapshot(Playlist snapshot) {
+        if (snapshots == null)
+            snapshots = new ArrayList<>(1);
+        snapshots.add(new WeakReference<>(snapshot));
+    }
+
+    /**
+     * Unregisters a snapshot playlist that no longer shares this index.
+     *
+     * @param snapshot the snapshot playlist
+     */
+    void removeSnapshot(Playlist snapshot) {
+        if (snapshots == null)
+            return;
+        snapshots.removeIf(reference -> reference.get() == null || reference.get() == snapshot);
+        if (snapshots.isEmpty())
+            snapshots = null;
+    }
+
+    /**
+     * Checks if snapshots still share this index, forgetting the ones that were collected.
+     *
+     * @return true if a snapshot shares this index
+     */
+    boolean isShared() {
+        if (snapshots == null)
+            return false;
+        snapshots.removeIf(reference -> reference.get() == null);
+        if (snapshots.isEmpty())
+            snapshots = null;
+        return snapshots != null;
+    }
+
+    /**
+     * Gives every snapshot sharing this index a copy of its own, so this index can change.
+     */
+    private void releaseSnapshots() {
+        if (snapshots == null)
+            return;
+        ArrayList<WeakReference<Playlist>> released = snapshots;
+        snapshots = null;
+        for (WeakReference<Playlist> reference : released) {
+            Playlist snapshot = reference.get();
+            if (snapshot != null)
+                snapshot.detachSnapshot(this);
+        }
+    }
+
+    /**
+     * Assigns dense ids to strings, so columns can hold them as ints.
+     * Ids are kept for the life of the index, even after the last song using them is removed.
+     */
+    private static class Dictionary {
+        private final HashMap<String, Integer> ids;
+        private final ArrayList<String> values;
+
+        /**
+         * Constructs an empty dictionary.
+         */
+        Dictionary() {
+            ids = new HashMap<>();
+            values = new ArrayList<>();
+        }
+
+        /**
+         * Constructs a copy of a dictionary keeping the same ids.
+         *
+         * @param source the dictionary to copy
+         */
+        Dictionary(Dictionary source) {
+            ids = new HashMap<>(source.ids);
+            values = new ArrayList<>(source.values);
+        }
+
+        /**
+         * Returns the id of a string, assigning the next free id to a new string.
+         *
+         * @param value the string
+         * @return the id of the string
+         */
+        int add(String value) {
+            Integer id = ids.get(value);
+            if (id != null)
+                return id;
+            ids.put(value, values.size());
+            values.add(value);
+            return values.size() - 1;
+        }
+
+        /**
+         * Returns the id of a string without assigning one.
+         *
+         * @param value the string
+         * @return the id of the string, or -1 if it has none
+         */
+        int find(String value) {
+            Integer id = ids.get(value);
+            return id == null ? -1 : id;
+        }
+    }
+
+    /**
+     * A read-only view of a sorted index with every song replaced by its copy, which sorts the same way.
+     * It only serves to build a {@link TreeSet} of the copies, which takes linear time from a sorted set with
+     * the same comparator, so the methods the tree doesn't use aren't supported.
+     */
+    private static final class CopiedSortedSet extends AbstractSet<Song> implements SortedSet<Song> {
+        private final SortedSet<Song> source;
+        private final UnaryOperator<Song> copy;
+
+        /**
+         * Constructs a view of a sorted index.
+         *
+         * @param source the sorted index
+         * @param copy   the function returning the copy of a song
+         */
+        CopiedSortedSet(SortedSet<Song> source, UnaryOperator<Song> copy) {
+            this.source = source;
+            this.copy = copy;
+        }
+
+        @Override
+        public Iterator<Song> iterator() {
+            Iterator<Song> songs = source.iterator();
+            return new Iterator<Song>() {
+                @Override
+                public boolean hasNext() {
+                    return songs.hasNext();
+                }
+
+                @Override
+                public Song next() {
+                    return copy.apply(songs.next());
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        public Comparator<? super Song> comparator() {
+            return source.comparator();
+        }
+
+        @Override
+        public SortedSet<Song> subSet(Song fromElement, Song toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Song> headSet(Song toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Song> tailSet(Song fromElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Song first() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Song last() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A filter resolved against the columns: the artist as a dictionary id and the genre as an ordinal.
+     * It keeps the columns it was resolved against, which compaction replaces rather than shifts.
+     */
+    private class ColumnFilter {
+        private final ArrayList<Song> songs = SongIndex.this.songs;
+        private final int[] durations = SongIndex.this.durations;
+        private final byte[] genres = SongIndex.this.genres;
+        private final int[] artistIds = SongIndex.this.artistIds;
+        private final boolean anyArtist;
+        private final int artistId;
+        private final byte genre;
+        private final int maxDuration;
+
+        /**
+         * Resolves the given filters against the columns.
+         *
+         * @param artist      the artist to filter by, or null for any artist
+         * @param genre       the genre to filter by, or null for any genre
+         * @param maxDuration the maximum duration to filter by
+         */
+        ColumnFilter(String artist, Song.Genre genre, int maxDuration) {
+            this.anyArtist = artist == null;
+            this.artistId = anyArtist ? -1 : artists.find(artist);
+            this.genre = genre == null ? NO_GENRE : (byte) genre.ordinal();
+            this.maxDuration = maxDuration;
+        }
+
+        /**
+         * Checks if the filter lets every song through.
+         *
+         * @return true if no filter is set, false otherwise
+         */
+        boolean isEmpty() {
+            return anyArtist && genre == NO_GENRE && maxDuration == Integer.MAX_VALUE;
+        }
+
+        /**
+         * Checks if the song in a slot passes the filter. Empty slots never pass.
+         *
+         * @param slot the slot of the song
+         * @return true if the slot holds a song passing the filter, false otherwise
+         */
+        boolean matches(int slot) {
+            return durations[slot] <= maxDuration
+                    && (genre == NO_GENRE || genres[slot] == genre)
+                    && (anyArtist || artistIds[slot] == artistId)
+                    && songs.get(slot) != null;
+        }
+    }
+
+    /**
+     * A spliterator over a range of slots of the adding order that tests a filter on the columns.
+     * It reports an exact size only when nothing is filtered out and no slot is empty.
+     */
+    private class ColumnScan implements Spliterator<Song> {
+        private final ColumnFilter filter;
+        private int slot;
+        private final int fence;
+        private final ScanGuard guard;
+
+        /**
+         * Constructs a scan of the slots from {@code slot} up to {@code fence}, exclusive.
+         *
+         * @param filter the filter to test
+         * @param slot   the first slot
+         * @param fence  the slot after the last one
+         * @param guard  the guard of the scan
+         */
+        ColumnScan(ColumnFilter filter, int slot, int fence, ScanGuard guard) {
+            this.filter = filter;
+            this.slot = slot;
+            this.fence = fence;
+            this.guard = guard;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Song> action) {
+            guard.check();
+            while (slot < fence) {
+                int current = slot++;
+                if (filter.matches(current)) {
+                    Song song = filter.songs.get(current);
+                    guard.returned(song);
+                    action.accept(song);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Song> trySplit() {
+            int middle = (slot + fence) >>> 1;
+            if (middle <= slot)
+                return null;
+            ColumnScan prefix = new ColumnScan(filter, slot, middle, guard.split());
+            slot = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - slot;
+        }
+
+        @Override
+        public int characteristics() {
+            int characteristics = ORDERED | NONNULL;
+            if (filter.isEmpty() && removedCount == 0)
+                characteristics |= SIZED | SUBSIZED;
+            return characteristics;
+        }
+    }
+
+    /**
+     * A spliterator over a sorted index or an array of songs that fails fast like the other scans.
+     * When the song it returned last is removed from a sorted index, the scan resumes in the index after
+     * that song; an array doesn't change, so its scan simply goes on.
+     */
+    private class GuardedScan implements Spliterator<Song>, Consumer<Song> {
+        private Spliterator<Song> source;
+        private final NavigableSet<Song> index;
+        private final ScanGuard guard;
+        private int characteristics;
+        private Song current;
+
+        /**
+         * Constructs a scan over the given source.
+         *
+         * @param source the songs to scan
+         * @param index  the sorted index to resume in, or null if the source is an array or a split part
+         *               that can't be resumed
+         * @param guard  the guard of the scan
+         */
+        GuardedScan(Spliterator<Song> source, NavigableSet<Song> index, ScanGuard guard) {
+            this.source = source;
+            this.index = index;
+            this.guard = guard;
+            this.characteristics = source.characteristics();
+        }
+
+        @Override
+        public void accept(Song song) {
+            current = song;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Song> action) {
+            if (guard.check() && (characteristics & SORTED) != 0) {
+                if (index == null)
+                    throw new ConcurrentModificationException();
+                source = index.tailSet(guard.current(), false).spliterator();
+                characteristics &= ~(SIZED | SUBSIZED);
+            }
+            if (!source.tryAdvance(this))
+                return false;
+            guard.returned(current);
+            action.accept(current);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Song> trySplit() {
+            Spliterator<Song> prefix = source.trySplit();
+            if (prefix == null)
+                return null;
+            return new GuardedScan(prefix, null, guard.split());
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics;
+        }
+
+        @Override
+        public Comparator<? super Song> getComparator() {
+            if ((characteristics & SORTED) == 0)
+                throw new IllegalStateException();
+            return index == null ? source.getComparator() : index.comparator();
+        }
+    }
+
+    /**
+     * Follows the changes of the index while a scan is open, so the scan fails fast instead of returning
+     * songs that are no longer indexed or skipping songs that still are. The only change a scan accepts is
+     * the removal of the song it returned last, or of a copy of it. A scan in duration order also rejects
+     * duration changes.
+     */
+    final class ScanGuard {
+        private final boolean durationOrdered;
+        private int expectedModCount;
+        private int expectedVersion;
+        private Song current;
+
+        /**
+         * Constructs a guard of the current state of the index.
+         *
+         * @param durationOrdered true if the scan depends on the durations of the songs
+         */
+        private ScanGuard(boolean durationOrdered) {
+            this.durationOrdered = durationOrdered;
+            this.expectedModCount = modCount;
+            this.expectedVersion = version;
+        }
+
+        /**
+         * Checks the index for changes since the last song was returned, and accepts them.
+         *
+         * @return true if the song returned last was removed, false if the songs didn't change
+         * @throws ConcurrentModificationException if any other song was added or removed, or the duration of
+         *                                         a song changed during a scan in duration order
+         */
+        boolean check() {
+            if (version == expectedVersion)
+                return false;
+            int changes = modCount - expectedModCount;
+            boolean removedCurrent = changes == 1 && current != null && current.equals(lastRemoved);
+            if ((changes != 0 && !removedCurrent) || (durationOrdered && version - expectedVersion != changes))
+                throw new ConcurrentModificationException();
+            expectedModCount = modCount;
+            expectedVersion = version;
+            return removedCurrent;
+        }
+
+        /**
+         * Accepts every change of the index so far without checking it, while another guard checks them.
+         */
+        void sync() {
+            expectedModCount = modCount;
+            expectedVersion = version;
+        }
+
+        /**
+         * Records the song the scan returns.
+         *
+         * @param song the returned song
+         */
+        void returned(Song song) {
+            current = song;
+        }
+
+        /**
+         * Returns the song the scan returned last.
+         *
+         * @return the last returned song, or null if none was returned yet
+         */
+        Song current() {
+            return current;
+        }
+
+        /**
+         * Returns a guard for a part split off the scan, expecting the same state of the index.
+         *
+         * @return the guard of the split part
+         */
+        ScanGuard split() {
+            ScanGuard guard = new ScanGuard(durationOrdered);
+            guard.expectedModCount = expectedModCount;
+            guard.expectedVersion = expectedVersion;
+            return guard;
+        }
+    }
+}
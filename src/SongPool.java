@@ -0,0 +1,135 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of canonical songs, so playlists over the same catalog can share one instance of every song.
+ * Songs are canonicalized by name and artist, the fields compared by {@link Song#equals(Object)}, and their
+ * name and artist strings are interned. The pool only holds its songs weakly, so a song no playlist or caller
+ * uses any more is dropped from the pool. The pool can be used by several threads at once, and so can the
+ * canonical songs: each thread may build and change playlists of its own over the same pool. A playlist is
+ * still confined to one thread, and changing the duration of a canonical song changes every playlist holding
+ * it, so that must not happen while other threads use those playlists.
+ */
+public class SongPool {
+    private final ConcurrentHashMap<Key, Entry> songs;
+    private final ReferenceQueue<Song> collected;
+
+    /**
+     * Constructs an empty pool.
+     */
+    public SongPool() {
+        songs = new ConcurrentHashMap<>();
+        collected = new ReferenceQueue<>();
+    }
+
+    /**
+     * Returns the canonical song equal to the given one.
+     * The first time a song is seen, a copy of it with interned name and artist becomes the canonical song,
+     * unless its strings are already interned, in which case the song itself does.
+     *
+     * @param song the song to canonicalize
+     * @return the canonical song equal to the given one
+     */
+    public Song canonical(Song song) {
+        removeCollected();
+        Key key = new Key(song.getName(), song.getArtist());
+        while (true) {
+            Entry entry = songs.get(key);
+            Song existing = entry == null ? null : entry.get();
+            if (existing != null)
+                return existing;
+            Song candidate = withInternedStrings(song);
+            Entry added = new Entry(candidate, new Key(candidate.getName(), candidate.getArtist()), collected);
+            if (entry == null ? songs.putIfAbsent(added.key, added) == null : songs.replace(key, entry, added))
+                return candidate;
+        }
+    }
+
+    /**
+     * Returns the number of songs in the pool, including songs collected since the last call to the pool.
+     *
+     * @return the number of songs in the pool
+     */
+    public int size() {
+        removeCollected();
+        return songs.size();
+    }
+
+    /**
+     * Returns a song with interned name and artist, equal to the given one.
+     *
+     * @param song the song
+     * @return the song itself if its strings are interned, otherwise a new song with interned strings
+     */
+    private static Song withInternedStrings(Song song) {
+        String name = song.getName().intern();
+        String artist = song.getArtist().intern();
+        if (name == song.getName() && artist == song.getArtist())
+            return song;
+        return new Song(name, artist, song.getGenre(), song.getDuration());
+    }
+
+    /**
+     * Removes the entries of songs that were garbage collected.
+     */
+    private void removeCollected() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            songs.remove(entry.key, entry);
+        }
+    }
+
+    /**
+     * The name and artist identifying a song in the pool.
+     */
+    private static final class Key {
+        private final String name;
+        private final String artist;
+
+        /**
+         * Constructs a key for the given name and artist.
+         *
+         * @param name   the name of the song
+         * @param artist the artist of the song
+         */
+        Key(String name, String artist) {
+            this.name = name;
+            this.artist = artist;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof Key))
+                return false;
+            Key otherKey = (Key) other;
+            return name.equals(otherKey.name) && artist.equals(otherKey.artist);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + artist.hashCode();
+        }
+    }
+
+    /**
+     * A weak reference to a canonical song that remembers its key, so it can be removed once collected.
+     */
+    private static final class Entry extends WeakReference<Song> {
+        private final Key key;
+
+        /**
+         * Constructs an entry for the given song.
+         *
+         * @param song      the canonical song
+         * @param key       the key of the song
+         * @param collected the queue notified when the song is collected
+         */
+        Entry(Song song, Key key, ReferenceQueue<Song> collected) {
+            super(song, collected);
+            this.key = key;
+        }
+    }
+}
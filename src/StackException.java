@@ -27,4 +27,18 @@ public class StackException extends RuntimeException {
     public StackException(String message, Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Constructs a new stack exception with the specified detail message, cause, suppression setting and
+     * stack trace setting. An exception created without a writable stack trace skips the costly stack walk,
+     * so it can be thrown cheaply in hot loops or preallocated and thrown repeatedly.
+     *
+     * @param message            the detail message of the exception
+     * @param cause              the cause of the exception
+     * @param enableSuppression  whether suppressed exceptions can be added
+     * @param writableStackTrace whether the stack trace is filled in
+     */
+    public StackException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
 }
@@ -27,4 +27,17 @@ public class StackOverflowException extends StackException {
     public StackOverflowException(String message, Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Constructs a new stack overflow exception with the specified detail message, cause, suppression setting and
+     * stack trace setting, see {@link StackException#StackException(String, Throwable, boolean, boolean)}.
+     *
+     * @param message            the detail message of the exception
+     * @param cause              the cause of the exception
+     * @param enableSuppression  whether suppressed exceptions can be added
+     * @param writableStackTrace whether the stack trace is filled in
+     */
+    public StackOverflowException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
 }